@@ -0,0 +1,71 @@
+package com.UI.chat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Client history append throughput through the background writer: a burst
+ * of lines queued as a busy room delivers them, then written out, under
+ * each sync policy. Reported per line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryAppendBenchmark {
+    // Lines queued per invocation before they are written out
+    private static final int BATCH = 1000;
+
+    @Param({"none", "interval:1000", "every:100"})
+    String sync;
+
+    private Path dir;
+    private HistoryStore store;
+    private long nextId = 1;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("chat-history-append-bench");
+        store = new HistoryStore(dir, HistoryStore.SyncPolicy.parse(sync));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public HistoryStore.Page appendBatch() {
+        for (int i = 0; i < BATCH; i++) {
+            store.append("All", HistoryBenchmark.line(nextId++));
+        }
+        // A read first writes out whatever the writer thread hasn't yet
+        return store.tail("All", 1);
+    }
+}
@@ -0,0 +1,95 @@
+package com.UI.chat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Client history I/O on large files: reading the last page, as opening a
+ * chat does, paging back from it, as scrolling to the top does, and
+ * appending one line, as every incoming message does. Lines look like the
+ * ones {@code ChatWindow} writes. The writer behind those appends is
+ * measured by {@link HistoryAppendBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryBenchmark {
+    // Lines per page, as ChatWindow reads them
+    private static final int PAGE_LINES = 200;
+    // Pages read back from the end by one scroll to the top
+    private static final int SCROLL_PAGES = 10;
+
+    @Param({"10000", "100000", "1000000"})
+    int lines;
+
+    private Path dir;
+    private HistoryStore store;
+    private long nextId;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("chat-history-bench");
+        store = new HistoryStore(dir, HistoryStore.SyncPolicy.parse("interval:1000"));
+        try (BufferedWriter w = Files.newBufferedWriter(dir.resolve("All.txt"), StandardCharsets.UTF_8)) {
+            for (nextId = 1; nextId <= lines; nextId++) {
+                w.write(line(nextId));
+                w.newLine();
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    static String line(long id) {
+        return id + "\t[12:34] user" + (id % 100) + ": message number " + id + " in the lobby";
+    }
+
+    @Benchmark
+    public HistoryStore.Page openChat() {
+        return store.tail("All", PAGE_LINES);
+    }
+
+    @Benchmark
+    public HistoryStore.Page scrollBack() {
+        HistoryStore.Page page = store.tail("All", PAGE_LINES);
+        for (int i = 0; i < SCROLL_PAGES && page.from() > 0; i++) {
+            page = store.before("All", page, PAGE_LINES);
+        }
+        return page;
+    }
+
+    @Benchmark
+    public void writeHistory() {
+        store.append("All", line(nextId++));
+    }
+}
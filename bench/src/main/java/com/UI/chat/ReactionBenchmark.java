@@ -0,0 +1,75 @@
+package com.UI.chat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bookkeeping behind {@link ReactionManager#handleReaction}, minus the
+ * hop to the FX thread: storing reaction summaries spread over a chat's
+ * messages, and reading one message's counts back as a cell is rebuilt.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReactionBenchmark {
+    private static final String[] EMOJIS = {"👍", "❤️", "😂", "🎉", "😢"};
+    // A precomputed walk over (message, summary), so the benchmark doesn't time the random generator
+    private static final int STEPS = 1 << 16;
+
+    @Param({"1000", "100000"})
+    int messages;
+
+    private ReactionStore store;
+    private long[] ids;
+    private List<Map<String, Integer>> summaries;
+    private int step;
+
+    @Setup
+    public void setup() {
+        store = new ReactionStore();
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        ids = new long[STEPS];
+        summaries = new ArrayList<>(STEPS);
+        for (int i = 0; i < STEPS; i++) {
+            ids[i] = 1 + rnd.nextInt(messages);
+            Map<String, Integer> counts = new LinkedHashMap<>();
+            for (int e = 1 + rnd.nextInt(EMOJIS.length); e > 0; e--) {
+                counts.put(EMOJIS[rnd.nextInt(EMOJIS.length)], 1 + rnd.nextInt(200));
+            }
+            summaries.add(counts);
+        }
+        for (int i = 0; i < STEPS; i++) {
+            store.set("#room", ids[i], summaries.get(i));
+        }
+    }
+
+    @Benchmark
+    public void handleReaction() {
+        int i = step++ & (STEPS - 1);
+        store.set("#room", ids[i], summaries.get(i));
+    }
+
+    @Benchmark
+    public Map<String, Integer> readReactions() {
+        return store.of("#room", ids[step++ & (STEPS - 1)]);
+    }
+}
@@ -0,0 +1,65 @@
+package com.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The server core running in-process for a benchmark: a throwaway message
+ * log and logged-in {@link InMemoryConnection}s instead of sockets.
+ */
+final class BenchServer {
+    private BenchServer() {}
+
+    /** Point the server at a fresh log in a temporary directory. */
+    static Path start() throws IOException {
+        Path dir = Files.createTempDirectory("chat-bench");
+        // Retention 0: full segments are deleted as the log rolls, so a long run doesn't fill the disk
+        ChatServer.init(new MessageLog(dir, 64L << 20, TimeUnit.HOURS.toMillis(1), 0, 0), 256);
+        return dir;
+    }
+
+    static void stop(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    /** Log in {@code n} clients named {@code prefix0..}, discarding the login traffic. */
+    static List<InMemoryConnection> login(String prefix, int n, boolean binary) {
+        List<InMemoryConnection> clients = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            InMemoryConnection c = new InMemoryConnection(binary);
+            String nick = prefix + i;
+            if (!ChatServer.presence.join(nick, c)) throw new IllegalStateException("nickname taken: " + nick);
+            c.nickname = nick;
+            clients.add(c);
+            // Each join queues a delta to everyone; drain before the queues overflow
+            if (i % 256 == 255) drain(clients);
+        }
+        drain(clients);
+        return clients;
+    }
+
+    static void logout(List<InMemoryConnection> clients) {
+        for (InMemoryConnection c : clients) {
+            ChatServer.presence.leave(c.nickname, c);
+        }
+    }
+
+    /** Dequeue what every client has queued, as their writers would. @return bytes "written" */
+    static long drain(List<InMemoryConnection> clients) {
+        long bytes = 0;
+        for (InMemoryConnection c : clients) {
+            bytes += c.drain();
+        }
+        return bytes;
+    }
+}
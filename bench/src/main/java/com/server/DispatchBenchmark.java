@@ -0,0 +1,120 @@
+package com.server;
+
+import com.protocol.Op;
+import com.protocol.Wire;
+import com.protocol.WireWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command dispatch as the client handlers do it: a line through
+ * {@code handleLine}, or a frame body through {@code handleFrame}, in a
+ * small lobby. Chat and whisper commands include their append to the
+ * message log.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+    private static final int LISTENERS = 10;
+
+    private Path logDir;
+    private List<InMemoryConnection> everyone;
+    private InMemoryConnection alice;
+    private String reactLine;
+    private byte[] sayFrame, typingFrame, whisperFrame;
+
+    @Setup
+    public void setup() throws IOException {
+        logDir = BenchServer.start();
+        everyone = BenchServer.login("user", LISTENERS, true);
+        alice = everyone.get(0);
+        sayFrame = body(new WireWriter(Op.SAY).string(Rooms.LOBBY).string("hello everyone"));
+        typingFrame = body(new WireWriter(Op.TYPING).string(Rooms.LOBBY));
+        whisperFrame = body(new WireWriter(Op.WHISPER).string("user1").string("psst"));
+    }
+
+    /** Post a fresh message to react to; the log may have rolled it away since the last iteration. */
+    @Setup(Level.Iteration)
+    public void seedMessage() {
+        ChatServer.handleLine(alice, "react to me");
+        long id = 0;
+        Frame f;
+        while ((f = alice.outbound.poll()) != null) {
+            if (f.op == Op.CHAT) id = f.id();
+        }
+        BenchServer.drain(everyone);
+        reactLine = "/react " + id + " 👍";
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchServer.logout(everyone);
+        BenchServer.stop(logDir);
+    }
+
+    private static byte[] body(WireWriter frame) throws IOException {
+        return Wire.readFrame(new ByteArrayInputStream(frame.toByteArray()));
+    }
+
+    @Benchmark
+    public long lineChat() {
+        ChatServer.handleLine(alice, "hello everyone");
+        return BenchServer.drain(everyone);
+    }
+
+    @Benchmark
+    public long lineTyping() {
+        ChatServer.handleLine(alice, "/typing");
+        return BenchServer.drain(everyone);
+    }
+
+    @Benchmark
+    public long lineWhisper() {
+        ChatServer.handleLine(alice, "/w user1 psst");
+        return BenchServer.drain(everyone);
+    }
+
+    @Benchmark
+    public long lineReact() {
+        ChatServer.handleLine(alice, reactLine);
+        return BenchServer.drain(everyone);
+    }
+
+    @Benchmark
+    public long frameChat() {
+        ChatServer.handleFrame(alice, sayFrame);
+        return BenchServer.drain(everyone);
+    }
+
+    @Benchmark
+    public long frameTyping() {
+        ChatServer.handleFrame(alice, typingFrame);
+        return BenchServer.drain(everyone);
+    }
+
+    @Benchmark
+    public long frameWhisper() {
+        ChatServer.handleFrame(alice, whisperFrame);
+        return BenchServer.drain(everyone);
+    }
+}
@@ -0,0 +1,78 @@
+package com.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One broadcast to every logged-in client, and the user-list traffic of a
+ * login. Each operation also drains every queue, as the writers would, so
+ * the queues stay in steady state; compare runs, not absolute numbers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+    @Param({"10", "1000", "10000"})
+    int clients;
+
+    @Param({"binary", "text"})
+    String protocol;
+
+    private Path logDir;
+    private List<InMemoryConnection> members;
+    private InMemoryConnection newcomer;
+    private long nextId;
+
+    @Setup
+    public void setup() throws IOException {
+        logDir = BenchServer.start();
+        members = BenchServer.login("user", clients, "binary".equals(protocol));
+        newcomer = new InMemoryConnection("binary".equals(protocol));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchServer.logout(members);
+        BenchServer.stop(logDir);
+    }
+
+    /** A lobby chat line: kept for replay, queued to everyone, encoded once per protocol. */
+    @Benchmark
+    public long broadcastChat() {
+        ChatServer.deliver(Rooms.LOBBY, Frame.chat(Rooms.LOBBY, ++nextId, "user0", "hello everyone, how is it going?"));
+        return BenchServer.drain(members);
+    }
+
+    /** A lobby notice, which has no ID and skips the replay buffer. */
+    @Benchmark
+    public long broadcastNotice() {
+        ChatServer.deliver(Rooms.LOBBY, Frame.notice("** somebody joined the chat **"));
+        return BenchServer.drain(members);
+    }
+
+    /** A login and logout: the full USER_LIST to the newcomer, a USER_JOIN and a USER_LEAVE to everyone else. */
+    @Benchmark
+    public long userList() {
+        ChatServer.presence.join("newcomer", newcomer);
+        ChatServer.presence.leave("newcomer", newcomer);
+        return BenchServer.drain(members) + newcomer.drain();
+    }
+}
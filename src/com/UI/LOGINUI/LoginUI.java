@@ -3,6 +3,7 @@ package com.UI.LOGINUI;
 import com.UI.chat.ChatWindow;
 import javafx.animation.FadeTransition;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
@@ -19,6 +20,7 @@ import javafx.util.Duration;
 
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public class LoginUI extends Application {
     @Override
@@ -99,15 +101,19 @@ public class LoginUI extends Application {
                         "Please enter both server address and your nickname.",
                         ButtonType.OK).showAndWait();
             } else {
-                try {
-                    new ChatWindow(host, 5555, nick);
-                    primaryStage.close();
-                } catch (Exception ex) {
-                    ex.printStackTrace();
+                // The chat window shows at once and connects in the background
+                loginButton.setDisable(true);
+                new ChatWindow(host, 5555, nick).connected().whenCompleteAsync((client, failure) -> {
+                    loginButton.setDisable(false);
+                    if (failure == null) {
+                        primaryStage.close();
+                        return;
+                    }
+                    failure.printStackTrace();
                     new Alert(Alert.AlertType.ERROR,
                             "Unable to connect to chat server.",
                             ButtonType.OK).showAndWait();
-                }
+                }, Platform::runLater);
             }
         });
 
@@ -124,9 +130,10 @@ public class LoginUI extends Application {
                 bgGradient, CornerRadii.EMPTY, Insets.EMPTY
         )));
 
-        // Fetch local IPv4
-        String localIp = getLocalIPv4();
-        Label ipLabel = new Label("Your IP: " + localIp);
+        // Fetch local IPv4; walking the interfaces can be slow, so not before the first frame
+        Label ipLabel = new Label("Your IP: …");
+        CompletableFuture.supplyAsync(this::getLocalIPv4)
+                .thenAcceptAsync(ip -> ipLabel.setText("Your IP: " + ip), Platform::runLater);
         ipLabel.setTextFill(Color.rgb(255,255,255,0.5));
         ipLabel.setFont(Font.font(12));
         ipLabel.setPadding(new Insets(5));
@@ -1,75 +1,513 @@
 package com.UI.chat;
 
+import com.protocol.Op;
+import com.protocol.Transfer;
+import com.protocol.Wire;
+import com.protocol.WireReader;
+import com.protocol.WireWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.function.Consumer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * ChatClient handles:
- *  - connecting to the server
- *  - sending broadcast and private messages
- *  - receiving both chat lines and USER_LIST updates
+ *  - connecting to the server, negotiating the binary protocol and falling
+ *    back to the line protocol if the server doesn't speak it
+ *  - sending room and private messages, reactions and commands
+ *  - decoding everything the server sends into {@link ChatListener} calls,
+ *    including online-list updates (one snapshot after login, then
+ *    join/leave deltas)
+ *
+ * Chats are identified by a chat key: {@code "All"} for the lobby,
+ * {@code "#name"} for a named room, or a nickname for a whisper
+ * conversation.
+ *
+ * Outgoing messages are buffered and flushed together once per
+ * {@link #FLUSH_WINDOW_MS}, so a burst (typing + message) costs one write.
+ *
+ * A dropped connection is retried with jittered exponential backoff. On
+ * reconnect the client rejoins its rooms and asks the server to replay
+ * what it missed after the last message ID it saw in each room and in its
+ * whispers; messages sent while disconnected are dropped.
+ *
+ * The server pings a client it hasn't heard from in a while and drops it
+ * if no answer comes; pings are answered here, unseen by the listener.
+ *
+ * Attachments travel over connections of their own to the server's
+ * attachment port (see {@link Transfer}), so a large file never holds up
+ * chat traffic; an interrupted transfer resumes where it stopped. Their
+ * progress is reported to the listener as (SYSTEM) lines in the lobby.
  */
 public class ChatClient {
-    private final Socket socket;
-    private final BufferedReader in;
-    private final PrintWriter out;
-    private final Consumer<String> messageHandler;
-    private final Consumer<List<String>> userListHandler;
+    public static final String LOBBY = "All";
+    private static final long FLUSH_WINDOW_MS = 1;
+    private static final long RECONNECT_MIN_MS = 500;
+    private static final long RECONNECT_MAX_MS = 30_000;
+    private static final int TRANSFER_ATTEMPTS = 5;
+    private static final long TRANSFER_CHUNK = 1 << 20;
+    // Resume key for the whispers sent to us
+    private static final String WHISPERS = "@";
+    // One flusher thread shared by every client in the process
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-flush");
+        t.setDaemon(true);
+        return t;
+    });
+    // Uploads and downloads, each blocking on its own connection
+    private static final ExecutorService TRANSFERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "chat-transfer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String host;
+    private final int port;
+    private final String nickname;
+    // Replaced on reconnect; writes and flushes hold writeLock
+    private volatile Socket socket;
+    private volatile InputStream in;
+    private volatile OutputStream out;
+    private volatile boolean binary;
+    private volatile boolean connected;
+    private volatile boolean closed;
+    // Set once the server accepted our nickname (listener thread only)
+    private boolean loggedIn;
+    // Logging in again after a dropped connection, not yet accepted (listener thread only)
+    private boolean reconnecting;
+    // From the server's LOGIN_OK; quoted when logging in again to take over our old session
+    private volatile String resumeToken;
+    private final Object writeLock = new Object();
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+    private final ChatListener listener;
+    // Online users, rebuilt from the snapshot and kept current by deltas (listener thread only)
+    private final Set<String> online = new LinkedHashSet<>();
+    // Chunks of a user list still being received (listener thread only)
+    private final List<String> partialUsers = new ArrayList<>();
+    // Rooms we are in, to rejoin after a reconnect (listener thread only)
+    private final Set<String> rooms = new LinkedHashSet<>();
+    // Resume key (room name, or "@" for whispers) -> ID of the last message received (listener thread only)
+    private final Map<String, Long> lastSeen = new HashMap<>();
+    // Resume keys whose live frames are dropped until their replay starts, as the replay repeats them
+    private final Set<String> dropping = new HashSet<>();
+    // Files asked to be attached, by the tag their UPLOAD_READY will carry
+    private final Map<Long, Path> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong nextTag = new AtomicLong();
 
     /**
-     * @param host            server hostname
-     * @param port            server port
-     * @param nickname        this client's nickname
-     * @param messageHandler  called for any non-USER_LIST line
-     * @param userListHandler called when a \"USER_LIST ...\" line is received
+     * @param host     server hostname
+     * @param port     server port
+     * @param nickname this client's nickname
+     * @param listener receives everything the server sends, on a background thread
      */
-    public ChatClient(
-            String host,
-            int port,
-            String nickname,
-            Consumer<String> messageHandler,
-            Consumer<List<String>> userListHandler
-    ) throws IOException {
-        this.socket          = new Socket(host, port);
-        this.in              = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.out             = new PrintWriter(socket.getOutputStream(), true);
-        this.messageHandler  = messageHandler;
-        this.userListHandler = userListHandler;
-
-        // announce ourselves
-        out.println(nickname);
+    public ChatClient(String host, int port, String nickname, ChatListener listener) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.nickname = nickname;
+        this.listener = listener;
+        login();
 
         // listen in background
-        new Thread(this::listen).start();
+        new Thread(this::run).start();
+    }
+
+    /** Connect and announce ourselves, asking for the binary protocol. */
+    private void login() throws IOException {
+        synchronized (writeLock) {
+            connect();
+            String token = resumeToken;
+            writeLine(Wire.HELLO + " " + nickname + (token != null ? " " + token : ""));
+            out.flush();
+            binary = Wire.HELLO_OK.equals(Wire.readLine(in));
+            if (!binary) {
+                // Line-protocol-only server: it took the hello as our nickname, so start over
+                socket.close();
+                connect();
+                writeLine(nickname);
+                out.flush();
+            }
+            connected = true;
+        }
+    }
+
+    private void connect() throws IOException {
+        socket = new Socket(host, port);
+        in     = new BufferedInputStream(socket.getInputStream());
+        out    = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /** Listen until closed, reconnecting whenever the connection drops. */
+    private void run() {
+        while (true) {
+            listen();
+            connected = false;
+            // A refused nickname isn't retried; neither is a connection we closed
+            if (closed || !loggedIn) return;
+            listener.onLine(LOBBY, 0, "(SYSTEM) Connection lost, reconnecting...");
+            reconnecting = true;
+            // "Reconnected." waits for the server to accept the login
+            if (!reconnect()) return;
+        }
+    }
+
+    /**
+     * Log in again, waiting a random time below a ceiling that doubles after
+     * each failure, so a restarted server isn't hit by every client at once.
+     * @return false if the client was closed meanwhile
+     */
+    private boolean reconnect() {
+        long ceiling = RECONNECT_MIN_MS;
+        while (!closed) {
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling) + 1);
+                try { socket.close(); } catch (IOException ignored) {}
+                partialUsers.clear();
+                login();
+                resume();
+                return true;
+            } catch (IOException e) {
+                ceiling = Math.min(ceiling * 2, RECONNECT_MAX_MS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
     }
 
-    /** Listen for server lines and route them appropriately. */
+    /** Rejoin our rooms and ask for everything missed since the last message seen in each. */
+    private void resume() {
+        dropping.clear();
+        for (String room : rooms) {
+            sendJoin(room);
+        }
+        for (Map.Entry<String, Long> e : lastSeen.entrySet()) {
+            dropping.add(e.getKey());
+            if (binary) sendFrame(new WireWriter(Op.RESUME).string(e.getKey()).varint(e.getValue()));
+            else sendLine("/resume " + e.getKey() + " " + e.getValue());
+        }
+    }
+
+    /**
+     * Listen for server messages and route them to the listener, until the
+     * connection ends. A message that fails to decode is logged and skipped,
+     * so one bad frame can't end the listener without a reconnect.
+     */
     private void listen() {
-        String line;
         try {
-            while ((line = in.readLine()) != null) {
-                if (line.startsWith("USER_LIST ")) {
-                    String csv = line.substring("USER_LIST ".length());
-                    List<String> users = Arrays.asList(csv.split(","));
-                    userListHandler.accept(users);
-                } else {
-                    messageHandler.accept(line);
+            if (binary) {
+                byte[] body;
+                while ((body = Wire.readFrame(in)) != null) {
+                    try {
+                        onFrame(body);
+                    } catch (RuntimeException e) {
+                        skipped(e);
+                    }
+                }
+            } else {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    try {
+                        onLine(line);
+                    } catch (RuntimeException e) {
+                        skipped(e);
+                    }
                 }
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            // dropped; run() reconnects unless we closed it ourselves
+        }
+    }
+
+    private static void skipped(RuntimeException e) {
+        System.err.println("Skipped a malformed message from the server: " + e);
+    }
+
+    // --- Binary protocol: one decoder per server opcode ---
+
+    private interface FrameHandler {
+        void handle(ChatClient client, WireReader in);
+    }
+
+    private static final FrameHandler[] FRAME_HANDLERS = new FrameHandler[Op.TABLE_SIZE];
+    static {
+        FRAME_HANDLERS[Op.CHAT]          = (c, in) -> {
+            String room = in.string();
+            long id = in.varint();
+            if (c.seen(room, id)) c.listener.onLine(chatKey(room), id, in.string() + ": " + in.string());
+        };
+        FRAME_HANDLERS[Op.ATTACHMENT]    = (c, in) -> {
+            String room = in.string();
+            long id = in.varint();
+            String nick = in.string();
+            String name = in.string();
+            long size = in.varint();
+            String fileId = in.string();
+            Transfer.Ref ref = new Transfer.Ref(name, size, (int) in.varint(), fileId);
+            if (c.seen(room, id)) c.listener.onAttachment(chatKey(room), id, nick, ref);
+        };
+        FRAME_HANDLERS[Op.NOTICE]        = (c, in) -> c.listener.onLine(LOBBY, 0, in.string());
+        FRAME_HANDLERS[Op.WHISPER_FROM]  = (c, in) -> {
+            long id = in.varint();
+            String from = in.string();
+            if (c.seen(WHISPERS, id)) c.listener.onLine(from, id, "(whisper) " + from + ": " + in.string());
+        };
+        FRAME_HANDLERS[Op.WHISPER_TO]    = (c, in) -> c.listener.onLine(LOBBY, in.varint(), "(whisper to " + in.string() + ") " + in.string());
+        FRAME_HANDLERS[Op.USER_LIST]     = (c, in) -> c.userList(in.strings());
+        FRAME_HANDLERS[Op.USER_LIST_PART] = (c, in) -> c.userListPart(in.strings());
+        FRAME_HANDLERS[Op.USER_JOIN]     = (c, in) -> c.userJoined(in.string());
+        FRAME_HANDLERS[Op.USER_LEAVE]    = (c, in) -> c.userLeft(in.string());
+        FRAME_HANDLERS[Op.NICK_TAKEN]    = (c, in) -> c.nickTaken(in.string());
+        FRAME_HANDLERS[Op.NICK_INVALID]  = (c, in) -> c.nickInvalid(in.string());
+        FRAME_HANDLERS[Op.LOGIN_OK]      = (c, in) -> {
+            c.resumeToken = in.string();
+            c.accepted();
+        };
+        FRAME_HANDLERS[Op.TYPING_SET]    = (c, in) -> c.listener.onTyping(chatKey(in.string()), in.strings());
+        FRAME_HANDLERS[Op.REACTION_SUMMARY] = (c, in) -> {
+            String chat = chatKey(in.string());
+            long id = in.varint();
+            List<String> emojis = in.strings();
+            long[] counts = in.varints();
+            Map<String, Integer> byEmoji = new LinkedHashMap<>();
+            for (int i = 0; i < emojis.size() && i < counts.length; i++) byEmoji.put(emojis.get(i), (int) counts[i]);
+            c.listener.onReactions(chat, id, byEmoji);
+        };
+        FRAME_HANDLERS[Op.CLEAR_HISTORY] = (c, in) -> c.listener.onClearHistory();
+        FRAME_HANDLERS[Op.FRIEND_ADDED]  = (c, in) -> c.listener.onFriendAdded(in.string());
+        FRAME_HANDLERS[Op.ROOM_JOINED]   = (c, in) -> c.roomJoined(in.string());
+        FRAME_HANDLERS[Op.ROOM_PARTED]   = (c, in) -> c.roomParted(in.string());
+        FRAME_HANDLERS[Op.REPLAY_BEGIN]  = (c, in) -> c.dropping.remove(in.string());
+        FRAME_HANDLERS[Op.PING]          = (c, in) -> c.sendFrame(new WireWriter(Op.PONG));
+        FRAME_HANDLERS[Op.THROTTLED]     = (c, in) -> c.throttled(in.string(), in.varint());
+        FRAME_HANDLERS[Op.UPLOAD_READY]  = (c, in) -> c.uploadReady(in.varint(), in.string(), in.string(), (int) in.varint());
+    }
+
+    private void onFrame(byte[] body) {
+        WireReader r = new WireReader(body);
+        int op = r.op();
+        FrameHandler h = op < FRAME_HANDLERS.length ? FRAME_HANDLERS[op] : null;
+        if (h != null) h.handle(this, r);
+    }
+
+    // --- Line protocol fallback ---
+
+    /**
+     * A line from a server that didn't answer our hello, so predates the
+     * binary protocol. Such a server sends no message IDs, so its lines are
+     * never resumed or reacted to.
+     */
+    private void onLine(String line) {
+        // Chat lines and reaction summaries outside the lobby arrive as "ROOM <room> <line>"
+        String room = LOBBY;
+        if (line.startsWith("ROOM ")) {
+            int sp = line.indexOf(' ', "ROOM ".length());
+            if (sp > 0) {
+                room = line.substring("ROOM ".length(), sp);
+                line = line.substring(sp + 1);
+            }
+        }
+        if (line.startsWith("USER_LIST ")) {
+            String csv = line.substring("USER_LIST ".length());
+            userList(csv.isEmpty() ? List.of() : Arrays.asList(csv.split(",")));
+        } else if (line.startsWith("USER_LIST_PART ")) {
+            userListPart(Arrays.asList(line.substring("USER_LIST_PART ".length()).split(",")));
+        } else if (line.startsWith("USER_JOIN ")) {
+            userJoined(line.substring("USER_JOIN ".length()));
+        } else if (line.startsWith("USER_LEAVE ")) {
+            userLeft(line.substring("USER_LEAVE ".length()));
+        } else if (line.startsWith("NICK_TAKEN ")) {
+            nickTaken(line.substring("NICK_TAKEN ".length()));
+        } else if (line.startsWith("NICK_INVALID ")) {
+            nickInvalid(line.substring("NICK_INVALID ".length()));
+        } else if (line.startsWith("TYPING_SET ")) {
+            String[] p = line.split(" ", 3);
+            listener.onTyping(chatKey(p[1]), p.length < 3 || p[2].isEmpty() ? List.of() : Arrays.asList(p[2].split(",")));
+        } else if (line.startsWith("REACTION_SUMMARY ")) {
+            String[] p = line.split(" ", 3);
+            Map<String, Integer> byEmoji = new LinkedHashMap<>();
+            if (p.length == 3) {
+                for (String pair : p[2].split(",")) {
+                    int colon = pair.lastIndexOf(':');
+                    if (colon > 0) byEmoji.put(pair.substring(0, colon), Integer.parseInt(pair.substring(colon + 1)));
+                }
+            }
+            listener.onReactions(chatKey(room), Long.parseLong(p[1]), byEmoji);
+        } else if (line.startsWith("ROOM_JOINED ")) {
+            roomJoined(line.substring("ROOM_JOINED ".length()));
+        } else if (line.startsWith("ROOM_PARTED ")) {
+            roomParted(line.substring("ROOM_PARTED ".length()));
+        } else if (line.startsWith("REPLAY_BEGIN ")) {
+            dropping.remove(line.substring("REPLAY_BEGIN ".length()));
+        } else if (line.startsWith("REPLAY_END ")) {
+            // nothing to do: frames after the replay are live anyway
+        } else if (line.equals("PING")) {
+            sendLine("/pong");
+        } else if (line.startsWith("THROTTLED ")) {
+            String[] p = line.split(" ", 3);
+            throttled(p[1], Long.parseLong(p[2]));
+        } else if (line.startsWith("UPLOAD_READY ")) {
+            String[] p = line.split(" ", 5);
+            uploadReady(Long.parseLong(p[1]), p[2], p[3], Integer.parseInt(p[4]));
+        } else if (line.equals("CLEAR_HISTORY")) {
+            listener.onClearHistory();
+        } else if (line.startsWith("(SYSTEM) Added friend: ")) {
+            listener.onFriendAdded(line.substring("(SYSTEM) Added friend: ".length()));
+        } else if (line.startsWith("(whisper) ")) {
+            int idx = line.indexOf(": ");
+            listener.onLine(line.substring("(whisper) ".length(), idx), 0, line);
+        } else {
+            listener.onLine(chatKey(room), 0, line);
+        }
+    }
+
+    /** Whether {@code chatKey} names the lobby or a room, as opposed to a whisper conversation. */
+    public static boolean isRoom(String chatKey) {
+        return LOBBY.equals(chatKey) || chatKey.startsWith("#");
+    }
+
+    private static String chatKey(String room) {
+        return LOBBY.equals(room) ? LOBBY : "#" + room;
+    }
+
+    private static String roomName(String chatKey) {
+        return chatKey.startsWith("#") ? chatKey.substring(1) : chatKey;
+    }
+
+    /**
+     * Note message {@code id} under resume key {@code key}.
+     * @return false if it is a live copy of a message the pending replay will carry
+     */
+    private boolean seen(String key, long id) {
+        if (dropping.contains(key)) return false;
+        // The most recent, not the highest: IDs from different cluster nodes don't interleave
+        lastSeen.put(key, id);
+        return true;
+    }
+
+    private void roomJoined(String room) {
+        rooms.add(room);
+        listener.onRoomJoined(chatKey(room));
+    }
+
+    private void roomParted(String room) {
+        rooms.remove(room);
+        lastSeen.remove(room);
+        listener.onRoomParted(chatKey(room));
+    }
+
+    /** The server took our nickname: from LOGIN_OK, or the user list from a server that predates it. */
+    private void accepted() {
+        loggedIn = true;
+        if (reconnecting) {
+            reconnecting = false;
+            listener.onLine(LOBBY, 0, "(SYSTEM) Reconnected.");
+        }
+    }
+
+    private void userList(List<String> users) {
+        if (!binary) accepted();
+        online.clear();
+        online.addAll(partialUsers);
+        online.addAll(users);
+        partialUsers.clear();
+        listener.onUserList(new ArrayList<>(online));
+    }
+
+    /** Hold one chunk of a long user list until the USER_LIST that completes it. */
+    private void userListPart(List<String> users) {
+        partialUsers.addAll(users);
+    }
+
+    private void userJoined(String nick) {
+        if (online.add(nick)) listener.onUserList(new ArrayList<>(online));
+    }
+
+    private void userLeft(String nick) {
+        if (online.remove(nick)) listener.onUserList(new ArrayList<>(online));
+    }
+
+    /** The server dropped what we sent for going over a rate limit. */
+    private void throttled(String command, long retryAfterMillis) {
+        String what = switch (command) {
+            case "chat"    -> "messages";
+            case "whisper" -> "whispers";
+            case "react"   -> "reactions";
+            case "typing"  -> "typing updates";
+            default        -> "commands";
+        };
+        listener.onLine(LOBBY, 0, "(SYSTEM) Slow down: too many " + what + ", some were dropped. Try again in "
+                + retryAfterMillis + " ms.");
+    }
+
+    private void nickTaken(String nick) {
+        // Someone else has it now, even after a reconnect: stop trying
+        loggedIn = false;
+        listener.onLine(LOBBY, 0, "(SYSTEM) Nickname '" + nick + "' is already in use.");
+    }
+
+    private void nickInvalid(String reason) {
+        listener.onLine(LOBBY, 0, "(SYSTEM) Nickname '" + nickname + "' can't be used: " + reason + ".");
+    }
+
+    // --- Sending ---
+
+    /** Send a message to the lobby or a room ({@code chat} is a chat key). Text starting with '/' is a command. */
+    public void sendMessage(String chat, String text) {
+        if (binary) {
+            if (text.startsWith("/")) sendFrame(new WireWriter(Op.COMMAND).string(text));
+            else sendFrame(new WireWriter(Op.SAY).string(roomName(chat)).string(text));
+        } else {
+            if (text.startsWith("/") || LOBBY.equals(chat)) sendLine(text);
+            else sendLine("/say " + roomName(chat) + " " + text);
         }
     }
 
-    /** Broadcast a message to everyone. */
-    public void sendMessage(String text) {
-        out.println(text);
+    /** Subscribe to a room, creating it if nobody is in it yet. */
+    public void joinRoom(String room) {
+        sendJoin(roomName(room));
+    }
+
+    private void sendJoin(String room) {
+        if (binary) sendFrame(new WireWriter(Op.JOIN).string(room));
+        else sendLine("/join " + room);
+    }
+
+    /** Leave a room. */
+    public void partRoom(String room) {
+        room = roomName(room);
+        if (binary) sendFrame(new WireWriter(Op.PART).string(room));
+        else sendLine("/part " + room);
     }
 
     /**
@@ -78,12 +516,180 @@ public class ChatClient {
      * @param text      the message body
      */
     public void sendPrivate(String recipient, String text) {
-        out.println("/w " + recipient + " " + text);
+        if (binary) sendFrame(new WireWriter(Op.WHISPER).string(recipient).string(text));
+        else sendLine("/w " + recipient + " " + text);
+    }
+
+    /** Tell the server we are typing in the lobby or a room. */
+    public void sendTyping(String chat) {
+        String room = roomName(chat);
+        if (binary) sendFrame(new WireWriter(Op.TYPING).string(room));
+        else if (LOBBY.equals(room)) sendLine("/typing");
+        else sendLine("/typing " + room);
+    }
+
+    /** React to message {@code id} of a lobby or room chat with {@code emoji}. */
+    public void sendReaction(String chat, long id, String emoji) {
+        String room = roomName(chat);
+        if (binary) sendFrame(new WireWriter(Op.REACT).string(room).varint(id).string(emoji));
+        else if (LOBBY.equals(room)) sendLine("/react " + id + " " + emoji);
+        else sendLine("/react " + room + " " + id + " " + emoji);
+    }
+
+    /**
+     * Attach {@code file} to a lobby or room chat. The server grants the
+     * upload, the file is sent in the background, and once it has arrived
+     * the server posts it in the chat as an {@link Op#ATTACHMENT}.
+     */
+    public void sendAttachment(String chat, Path file) throws IOException {
+        String room = roomName(chat);
+        String name = file.getFileName().toString();
+        long size = Files.size(file);
+        long tag = nextTag.incrementAndGet();
+        uploads.put(tag, file);
+        if (binary) sendFrame(new WireWriter(Op.UPLOAD).string(room).string(name).varint(size).varint(tag));
+        else sendLine("/upload " + room + " " + tag + " " + size + " " + name);
+    }
+
+    /**
+     * Download the attachment {@code ref} to {@code target} in the background.
+     * Bytes go to {@code target.part} first, so an interrupted download picks
+     * up from there, even in a later session.
+     */
+    public void download(Transfer.Ref ref, Path target) {
+        TRANSFERS.execute(() -> {
+            Path part = target.resolveSibling(target.getFileName() + ".part");
+            String failure = retry(() -> {
+                try (SocketChannel ch = SocketChannel.open(new InetSocketAddress(host, ref.port()));
+                     FileChannel file = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    long pos = file.size();
+                    ch.write(Transfer.line("GET " + ref.id() + " " + pos));
+                    String reply = Transfer.readLine(ch);
+                    if (!reply.startsWith("SIZE ")) return reply;
+                    long total = Long.parseLong(reply.substring("SIZE ".length()));
+                    while (pos < total) {
+                        long n = file.transferFrom(ch, pos, Math.min(TRANSFER_CHUNK, total - pos));
+                        if (n == 0) throw new IOException("connection closed");
+                        pos += n;
+                    }
+                }
+                Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+                return null;
+            });
+            listener.onLine(LOBBY, 0, failure == null
+                    ? "(SYSTEM) Saved " + ref.name() + " to " + target + "."
+                    : "(SYSTEM) Download of " + ref.name() + " failed: " + failure);
+        });
+    }
+
+    /** The server granted upload {@code tag}: send the file, resuming from whatever part of it arrived before. */
+    private void uploadReady(long tag, String id, String key, int transferPort) {
+        Path file = uploads.remove(tag);
+        if (file == null) return;
+        TRANSFERS.execute(() -> {
+            String failure = retry(() -> {
+                try (SocketChannel ch = SocketChannel.open(new InetSocketAddress(host, transferPort));
+                     FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                    ch.write(Transfer.line("PUT " + id + " " + key));
+                    String reply = Transfer.readLine(ch);
+                    if (!reply.startsWith("OFFSET ")) return reply;
+                    long size = in.size();
+                    for (long pos = Long.parseLong(reply.substring("OFFSET ".length())); pos < size; ) {
+                        pos += in.transferTo(pos, Math.min(TRANSFER_CHUNK, size - pos), ch);
+                    }
+                    reply = Transfer.readLine(ch);
+                    return reply.equals("DONE") ? null : reply;
+                }
+            });
+            if (failure != null) {
+                listener.onLine(LOBBY, 0, "(SYSTEM) Upload of " + file.getFileName() + " failed: " + failure);
+            }
+        });
+    }
+
+    /** One attempt at a transfer: null once complete, or the server's refusal. */
+    private interface Attempt {
+        String run() throws IOException;
+    }
+
+    /**
+     * Run {@code attempt} until it completes, the server refuses it, or
+     * {@link #TRANSFER_ATTEMPTS} connections have failed, backing off in
+     * between; each attempt resumes where the last one stopped.
+     * @return null on success, else why it failed
+     */
+    private String retry(Attempt attempt) {
+        long backoff = RECONNECT_MIN_MS;
+        for (int i = 1; ; i++) {
+            try {
+                String refusal = attempt.run();
+                return refusal == null ? null : refusal.replaceFirst("^ERR ", "");
+            } catch (IOException | NumberFormatException e) {
+                if (i == TRANSFER_ATTEMPTS || closed) return e.getMessage();
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return "interrupted";
+            }
+            backoff = Math.min(backoff * 2, RECONNECT_MAX_MS);
+        }
+    }
+
+    /** Ask the server to confirm {@code nickname} as a friend. */
+    public void addFriend(String nickname) {
+        if (binary) sendFrame(new WireWriter(Op.ADD_FRIEND).string(nickname));
+        else sendLine("/addfriend " + nickname);
+    }
+
+    /** Ask the server to clear the current chat's history. */
+    public void clearHistory() {
+        if (binary) sendFrame(new WireWriter(Op.CLEAR));
+        else sendLine("/clear");
+    }
+
+    private void sendLine(String line) {
+        send((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void sendFrame(WireWriter frame) {
+        send(frame.toByteArray());
+    }
+
+    /** Buffer one message; the first one of a burst schedules the flush that carries the rest. */
+    private void send(byte[] bytes) {
+        if (!connected) return;
+        try {
+            synchronized (writeLock) {
+                out.write(bytes);
+            }
+        } catch (IOException e) {
+            return;     // the listener notices the drop and reconnects
+        }
+        if (flushPending.compareAndSet(false, true)) {
+            FLUSHER.schedule(this::flush, FLUSH_WINDOW_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        flushPending.set(false);
+        try {
+            synchronized (writeLock) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            // as in send()
+        }
+    }
+
+    private void writeLine(String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
     }
 
     /** Gracefully close the connection. */
     public void close() throws IOException {
+        closed = true;
+        flush();
         socket.close();
     }
 }
-
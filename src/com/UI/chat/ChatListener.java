@@ -0,0 +1,43 @@
+package com.UI.chat;
+
+import com.protocol.Transfer;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Callbacks from {@link ChatClient}'s listener thread. Every server message
+ * arrives here already decoded, whichever protocol the connection uses, so
+ * the UI never has to sniff raw lines.
+ */
+public interface ChatListener {
+    /**
+     * A displayable line for chat {@code chatKey} ("All", "#room" or a whisper
+     * partner). {@code id} is the server's message ID, or 0 for notices.
+     */
+    default void onLine(String chatKey, long id, String line) {}
+
+    /** {@code nick} attached a file to chat {@code chatKey} as message {@code id}. */
+    default void onAttachment(String chatKey, long id, String nick, Transfer.Ref attachment) {}
+
+    /** The full online list, whenever it changes. */
+    default void onUserList(List<String> users) {}
+
+    /** Everyone currently typing in room {@code chatKey} (may include ourselves). */
+    default void onTyping(String chatKey, List<String> typists) {}
+
+    /** Message {@code id} of room {@code chatKey} now has these reaction counts (emoji → users), replacing earlier ones. */
+    default void onReactions(String chatKey, long id, Map<String, Integer> counts) {}
+
+    /** The server confirmed {@code nickname} as a friend. */
+    default void onFriendAdded(String nickname) {}
+
+    /** The server asked us to clear the current chat's history. */
+    default void onClearHistory() {}
+
+    /** We are now a member of room {@code chatKey} ("#room"). */
+    default void onRoomJoined(String chatKey) {}
+
+    /** We are no longer a member of room {@code chatKey}. */
+    default void onRoomParted(String chatKey) {}
+}
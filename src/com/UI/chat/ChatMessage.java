@@ -0,0 +1,50 @@
+package com.UI.chat;
+
+import com.protocol.Transfer;
+
+/**
+ * One line of a chat as the message list shows it: plain data, with the
+ * nodes that draw it supplied by whichever list cell is showing it right
+ * now (see {@link ReactionManager#newCell()}).
+ *
+ * @param chat       chat key the line belongs to
+ * @param id         the server's message ID, or 0 for notices
+ * @param display    the text shown, timestamp included
+ * @param attachment the file the line links to, or null
+ */
+record ChatMessage(String chat, long id, String display, Transfer.Ref attachment) {
+    // Marks an attachment's history line; shown text always starts with its timestamp, so never reads as one
+    private static final String ATTACH = "attach ";
+
+    /**
+     * The history line for a message. The server's message ID goes ahead of
+     * a tab, so reactions survive reloads; an attachment's file follows it as
+     * {@code attach <port> <id> <size> <name>} and another tab (names never
+     * contain one).
+     */
+    static String historyLine(long id, String display, Transfer.Ref attachment) {
+        if (id <= 0) return display;
+        if (attachment == null) return id + "\t" + display;
+        return id + "\t" + ATTACH + attachment.port() + " " + attachment.id() + " " + attachment.size() + " "
+                + attachment.name() + "\t" + display;
+    }
+
+    /** Split a {@link #historyLine} back into the message it was written for. */
+    static ChatMessage parse(String chat, String raw) {
+        int tab = raw.indexOf('\t');
+        if (tab > 0) {
+            try {
+                long id = Long.parseLong(raw.substring(0, tab));
+                String rest = raw.substring(tab + 1);
+                int end = rest.indexOf('\t');
+                if (!rest.startsWith(ATTACH) || end < 0) return new ChatMessage(chat, id, rest, null);
+                String[] p = rest.substring(ATTACH.length(), end).split(" ", 4);
+                if (p.length == 4) {
+                    Transfer.Ref ref = new Transfer.Ref(p[3], Long.parseLong(p[2]), Integer.parseInt(p[0]), p[1]);
+                    return new ChatMessage(chat, id, rest.substring(end + 1), ref);
+                }
+            } catch (NumberFormatException ignored) {}
+        }
+        return new ChatMessage(chat, 0, raw, null);
+    }
+}
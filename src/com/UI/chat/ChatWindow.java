@@ -1,52 +1,134 @@
 package com.UI.chat;
 
+import com.protocol.Transfer;
+
 import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
+import javafx.scene.control.skin.VirtualFlow;
 import javafx.scene.input.KeyCode;
 import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.IntConsumer;
 
 /**
  * Main chat window UI, redesigned for a clean white theme with cool accents.
- * Functionality unchanged.
+ * <p>
+ * Opening it never blocks the FX thread: the window is shown at once with
+ * placeholders while the connection and the lobby history are set up in
+ * parallel on background threads. History fills in as soon as it is read;
+ * the input controls come alive once the server has accepted us. Time to
+ * the first frame and to the first server message are printed.
  */
-public class ChatWindow {
+public final class ChatWindow implements ChatListener {
     private static final Path HISTORY_DIR =
             Paths.get(System.getProperty("user.home"), "ChatHistories");
+    // When history writes are synced to disk: none, interval:<ms> or every:<lines>
+    private static final HistoryStore.SyncPolicy HISTORY_SYNC =
+            HistoryStore.SyncPolicy.parse(System.getProperty("chat.history.sync", "interval:1000"));
+    // The server keeps typing state alive for a few seconds, so one /typing per second is plenty
+    private static final long TYPING_RESEND_MS = 1000;
+    // History lines read at a time: the last page on opening a chat, older ones when scrolled to the top
+    private static final int PAGE_LINES = 200;
+    // Connecting and reading history: blocking work kept off the FX thread
+    private static final ExecutorService BLOCKING = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "chat-blocking");
+        t.setDaemon(true);
+        return t;
+    });
 
-    private final ChatClient client;
+    // Null until connected; the controls that need it are disabled until then
+    private volatile ChatClient client;
+    private final CompletableFuture<ChatClient> connected;
     private final String myNick;
-    private final ListView<HBox> messageList = new ListView<>();
+    private final ListView<ChatMessage> messageList = new ListView<>();
     private final StackPane messageContainer;
     private final ListView<String> friendList = new ListView<>();
     private final ListView<String> onlineList = new ListView<>();
     private final TextField inputField = new TextField();
     private final DateTimeFormatter timeFmt = DateTimeFormatter.ofPattern("HH:mm");
     private String currentChat = "All";
-    private final Map<String, List<String>> historyMap = new HashMap<>();
+    // Messages loaded for the current chat, and for the lobby until it is first left (FX thread only)
+    private final Map<String, ObservableList<ChatMessage>> chats = new HashMap<>();
+    // The oldest page loaded of each chat in chats, to continue from when scrolling up
+    private final Map<String, HistoryStore.Page> oldest = new HashMap<>();
+    // Incoming lines and updates, applied once per pulse; a chat not loaded reads its lines back from history
+    private final UiBatcher batcher = new UiBatcher((chat, lines) -> {
+        ObservableList<ChatMessage> messages = chats.get(chat);
+        if (messages != null) messages.addAll(lines);
+    });
+    // Completes once the lobby's messages are on their way into chats
+    private final CompletableFuture<HistoryStore> history;
+    // Held while a line goes into history and the batcher, and while a page's cut point is taken, so each line is on one side
+    private final ReentrantLock receiving = new ReentrantLock();
+    // An older page is being read for the current chat (FX thread only)
+    private boolean loadingOlder;
+    // Latest TYPING_SET per chat, minus ourselves
+    private final Map<String, List<String>> typistsByChat = new ConcurrentHashMap<>();
+    private long lastTypingSent;
     private final ReactionManager reactionManager;
+    private final long openedNanos = System.nanoTime();
+    private final AtomicBoolean firstMessage = new AtomicBoolean();
 
-    public ChatWindow(String host, int port, String nickname) throws IOException {
+    /**
+     * Show the window and start connecting; call on the FX thread. If the
+     * connection fails the window closes again and {@link #connected()}
+     * completes exceptionally.
+     */
+    public ChatWindow(String host, int port, String nickname) {
         this.myNick = nickname;
-        Files.createDirectories(HISTORY_DIR);
-        historyMap.put("All", new ArrayList<>(loadHistory("All")));
+        history = CompletableFuture.supplyAsync(() -> {
+            HistoryStore store = new HistoryStore(HISTORY_DIR, HISTORY_SYNC);
+            HistoryStore.Page lobby = store.tail("All", PAGE_LINES);
+            // Queued ahead of anything that waits for this future, so it lands first
+            Platform.runLater(() -> {
+                chats.put("All", FXCollections.observableArrayList(parse("All", lobby.lines())));
+                oldest.put("All", lobby);
+            });
+            return store;
+        }, BLOCKING);
+        connected = CompletableFuture.supplyAsync(() -> {
+            try {
+                return new ChatClient(host, port, myNick, this);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, BLOCKING);
 
-        client = new ChatClient(host, port, myNick, this::onMessage, this::onUserList);
         messageContainer = new StackPane(messageList);
-        reactionManager = new ReactionManager(messageContainer, client, this::refreshSingleMessage);
+        reactionManager = new ReactionManager(messageContainer, () -> client, batcher);
+        messageList.setCellFactory(list -> reactionManager.newCell());
+        // Scrolled to the top: bring in the page before
+        messageList.skinProperty().addListener((obs, old, skin) -> {
+            if (messageList.lookup(".virtual-flow") instanceof VirtualFlow<?> flow) {
+                flow.positionProperty().addListener((o, was, pos) -> {
+                    if (pos.doubleValue() <= 0) loadOlder();
+                });
+            }
+        });
+        messageList.setPlaceholder(new Label("Loading history…"));
 
         friendList.setPrefWidth(200);
         friendList.getItems().add("All");
@@ -54,14 +136,54 @@ public class ChatWindow {
         friendList.getSelectionModel().selectedItemProperty().addListener((obs, old, sel) -> switchChat(sel));
 
         onlineList.setPrefWidth(200);
-        inputField.setOnKeyTyped(e -> client.sendMessage("/typing"));
+        inputField.setOnKeyTyped(e -> {
+            long now = System.currentTimeMillis();
+            if (ChatClient.isRoom(currentChat) && now - lastTypingSent >= TYPING_RESEND_MS) {
+                lastTypingSent = now;
+                client.sendTyping(currentChat);
+            }
+        });
 
         BorderPane root = buildUI();
+        root.getTop().setDisable(true);
+        root.getBottom().setDisable(true);
         reloadMessages();
         Stage stage = new Stage();
-        stage.setTitle("Chat — " + myNick);
-        stage.setScene(new Scene(root, 1000, 700));
+        stage.setTitle("Chat — " + myNick + " (connecting…)");
+        Scene scene = new Scene(root, 1000, 700);
+        scene.addPostLayoutPulseListener(new Runnable() {
+            @Override
+            public void run() {
+                scene.removePostLayoutPulseListener(this);
+                reportStartup("first frame");
+            }
+        });
+        stage.setScene(scene);
+        // Queued history lines are written by a daemon thread; get them onto disk before the app can exit
+        stage.setOnHidden(e -> history.thenAccept(HistoryStore::close));
         stage.show();
+
+        connected.whenCompleteAsync((c, failure) -> {
+            if (failure != null) {
+                stage.close();
+                return;
+            }
+            client = c;
+            stage.setTitle("Chat — " + myNick);
+            root.getTop().setDisable(false);
+            root.getBottom().setDisable(false);
+            reportStartup("connected");
+        }, Platform::runLater);
+    }
+
+    /** Completes with the client once connected and logged in, or with the reason it could not connect. */
+    public CompletableFuture<ChatClient> connected() {
+        return connected;
+    }
+
+    private void reportStartup(String milestone) {
+        System.out.printf(Locale.ROOT, "Startup: %s after %d ms%n", milestone,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - openedNanos));
     }
 
     private BorderPane buildUI() {
@@ -88,12 +210,13 @@ public class ChatWindow {
         title.setFont(Font.font("Segoe UI", 28));
         title.setTextFill(Color.web("#212529"));
         TextField addField = new TextField();
-        addField.setPromptText("Add friend...");
+        addField.setPromptText("Add friend or #room...");
         addField.setPrefWidth(250);
         Button addBtn = accentButton("+");
         addBtn.setOnAction(e -> {
             String f = addField.getText().trim();
-            if (!f.isEmpty()) { client.sendMessage("/addfriend " + f); addField.clear(); }
+            if (f.startsWith("#")) { client.joinRoom(f); addField.clear(); }
+            else if (!f.isEmpty()) { client.addFriend(f); addField.clear(); }
         });
         HBox topBar = new HBox(10, title, addField, addBtn);
         topBar.setAlignment(Pos.CENTER_LEFT);
@@ -119,9 +242,11 @@ public class ChatWindow {
         inputField.setOnKeyPressed(e -> { if (e.getCode() == KeyCode.ENTER) sendCurrent(); });
         Button sendBtn = accentButton("Send");
         sendBtn.setOnAction(e -> sendCurrent());
+        Button attachBtn = accentButton("Attach");
+        attachBtn.setOnAction(e -> attachFile());
         Button clearBtn = accentButton("Clear");
-        clearBtn.setOnAction(e -> client.sendMessage("/clear"));
-        HBox bottomBar = new HBox(10, inputField, sendBtn, clearBtn);
+        clearBtn.setOnAction(e -> client.clearHistory());
+        HBox bottomBar = new HBox(10, inputField, sendBtn, attachBtn, clearBtn);
         bottomBar.setPadding(new Insets(15));
         bottomBar.setAlignment(Pos.CENTER_LEFT);
         root.setBottom(bottomBar);
@@ -157,83 +282,192 @@ public class ChatWindow {
         String text = inputField.getText().trim();
         if (text.isEmpty()) return;
         inputField.clear();
-        if ("All".equals(currentChat)) client.sendMessage(text);
+        if ("/part".equals(text) && currentChat.startsWith("#")) client.partRoom(currentChat);
+        else if (ChatClient.isRoom(currentChat)) client.sendMessage(currentChat, text);
         else client.sendPrivate(currentChat, text);
     }
 
-    private void onMessage(String raw) {
-        if ("CLEAR_HISTORY".equals(raw)) { clearCurrentHistory(); return; }
-        if (raw.startsWith("USER_LIST ")) return;
-        if (raw.startsWith("TYPING ")) {
-            String[] p = raw.split(" ",3);
-            reactionManager.userTyping(p[1], p[2]); return;
+    /** Pick a file and attach it to the current room; it shows up as a link once uploaded. */
+    private void attachFile() {
+        if (!ChatClient.isRoom(currentChat)) {
+            onLine("All", 0, "(SYSTEM) Files can only be attached in rooms.");
+            return;
         }
-        if (raw.startsWith("REACTION ")) { reactionManager.handleReaction(raw); return; }
-
-        String chatKey = "All";
-        if (raw.startsWith("(whisper) ")) {
-            int idx = raw.indexOf(": ");
-            chatKey = raw.substring("(whisper) ".length(), idx);
-        } else if (raw.startsWith("(SYSTEM) Added friend: ")) {
-            String f = raw.substring("(SYSTEM) Added friend: ".length());
-            if (!friendList.getItems().contains(f)) friendList.getItems().add(f);
+        File file = new FileChooser().showOpenDialog(messageList.getScene().getWindow());
+        if (file == null) return;
+        try {
+            client.sendAttachment(currentChat, file.toPath());
+        } catch (IOException e) {
+            onLine("All", 0, "(SYSTEM) Cannot attach " + file.getName() + ": " + e.getMessage());
         }
-        String fmt = String.format("[%s] %s",
-                LocalTime.now().format(timeFmt), raw);
-        historyMap.computeIfAbsent(chatKey, k->new ArrayList<>()).add(fmt);
-        writeHistory(chatKey, fmt);
-        if (chatKey.equals(currentChat)) appendMessage(fmt);
     }
 
-    private void onUserList(List<String> users) {
-        Platform.runLater(() -> onlineList.getItems().setAll(users));
+    @Override
+    public void onLine(String chatKey, long id, String line) {
+        receive(chatKey, id, line, null);
+    }
+
+    @Override
+    public void onAttachment(String chatKey, long id, String nick, Transfer.Ref attachment) {
+        receive(chatKey, id, nick + ": " + Transfer.label(attachment.name(), attachment.size()), attachment);
+    }
+
+    private void receive(String chatKey, long id, String line, Transfer.Ref attachment) {
+        if (firstMessage.compareAndSet(false, true)) reportStartup("first message");
+        // Lines must land after the stored history, so wait for it if the server was quicker
+        HistoryStore store = history.join();
+        String display = String.format("[%s] %s", LocalTime.now().format(timeFmt), line);
+        receiving.lock();
+        try {
+            store.append(chatKey, ChatMessage.historyLine(id, display, attachment));
+            batcher.append(chatKey, new ChatMessage(chatKey, id, display, attachment));
+        } finally {
+            receiving.unlock();
+        }
+    }
+
+    @Override
+    public void onUserList(List<String> users) {
+        batcher.coalesce(onlineList, () -> onlineList.getItems().setAll(users));
+    }
+
+    @Override
+    public void onTyping(String chatKey, List<String> typists) {
+        List<String> others = new ArrayList<>(typists);
+        others.remove(myNick);
+        typistsByChat.put(chatKey, others);
+        if (chatKey.equals(currentChat)) reactionManager.showTyping(others);
+    }
+
+    @Override
+    public void onReactions(String chatKey, long id, Map<String, Integer> counts) {
+        reactionManager.handleReaction(chatKey, id, counts);
+    }
+
+    @Override
+    public void onRoomJoined(String chatKey) {
+        batcher.run(() -> {
+            if (!friendList.getItems().contains(chatKey)) friendList.getItems().add(chatKey);
+        });
+    }
+
+    @Override
+    public void onRoomParted(String chatKey) {
+        batcher.run(() -> {
+            if (chatKey.equals(currentChat)) friendList.getSelectionModel().select("All");
+            friendList.getItems().remove(chatKey);
+        });
+        typistsByChat.remove(chatKey);
+    }
+
+    @Override
+    public void onFriendAdded(String nickname) {
+        batcher.run(() -> {
+            if (!friendList.getItems().contains(nickname)) friendList.getItems().add(nickname);
+        });
+        onLine("All", 0, "(SYSTEM) Added friend: " + nickname);
+    }
+
+    @Override
+    public void onClearHistory() {
+        clearCurrentHistory();
     }
 
-    private void switchChat(String chat) { currentChat=chat; reloadMessages(); }
+    private void switchChat(String chat) {
+        // Only the open chat stays in memory; the others are read back from their tail when reopened
+        chats.remove(currentChat);
+        oldest.remove(currentChat);
+        currentChat=chat;
+        reactionManager.showTyping(typistsByChat.getOrDefault(chat, List.of()));
+        reloadMessages();
+    }
 
+    /**
+     * Show the current chat's messages; the list only builds cells for the
+     * rows in view. A chat not loaded yet has its last page read in the
+     * background and shown once it arrives, unless another chat was opened
+     * meanwhile.
+     */
     private void reloadMessages() {
-        List<String> msgs = historyMap.computeIfAbsent(currentChat, this::loadHistory);
-        Platform.runLater(() -> {
-            messageList.getItems().clear();
-            for (int i=0; i<msgs.size(); i++) {
-                messageList.getItems().add(
-                        reactionManager.wrapMessage(i, msgs.get(i), msgs.get(i))
-                );
+        String chat = currentChat;
+        history.thenAcceptAsync(store -> {
+            if (!chat.equals(currentChat)) return;
+            ObservableList<ChatMessage> messages = chats.get(chat);
+            if (messages != null) {
+                show(messages);
+            } else {
+                messageList.setItems(FXCollections.observableArrayList());
+                messageList.setPlaceholder(new Label("Loading history…"));
+                BLOCKING.execute(() -> readTail(store, chat));
             }
-        });
+        }, Platform::runLater);
     }
 
-    private void refreshSingleMessage(int idx) {
-        List<String> msgs = historyMap.get(currentChat); if (idx<0||idx>=msgs.size()) return;
-        String raw=msgs.get(idx);
-        HBox cell = reactionManager.wrapMessage(idx, raw, raw);
-        Platform.runLater(() -> messageList.getItems().set(idx,cell));
+    private void readTail(HistoryStore store, String chat) {
+        ObservableList<ChatMessage> messages = FXCollections.observableArrayList();
+        CompletableFuture<Long> end;
+        receiving.lock();
+        try {
+            // Lines stored before the mark are in the page; those batched after it collect in messages meanwhile
+            end = store.mark(chat);
+            batcher.run(() -> {
+                if (chat.equals(currentChat)) chats.put(chat, messages);
+            });
+        } finally {
+            receiving.unlock();
+        }
+        HistoryStore.Page page = store.tail(chat, PAGE_LINES, end.join());
+        List<ChatMessage> lines = parse(chat, page.lines());
+        batcher.run(() -> {
+            if (chats.get(chat) != messages) return;
+            messages.addAll(0, lines);
+            oldest.put(chat, page);
+            show(messages);
+        });
     }
 
-    private void appendMessage(String msg) {
-        Platform.runLater(() -> messageList.getItems().add(
-                reactionManager.wrapMessage(messageList.getItems().size(), msg, msg)
-        ));
+    private void show(ObservableList<ChatMessage> messages) {
+        messageList.setPlaceholder(null);
+        messageList.setItems(messages);
+        messageList.scrollTo(messages.size() - 1);
     }
 
-    private void clearCurrentHistory() {
-        historyMap.get(currentChat).clear();
-        Platform.runLater(() -> messageList.getItems().clear());
-        try { Files.deleteIfExists(HISTORY_DIR.resolve(currentChat+".txt")); }
-        catch(IOException e){e.printStackTrace();}
+    /**
+     * Prepend the page before the oldest one shown, keeping the rows in view
+     * where they are. The page is read in the background; it is dropped if
+     * the chat was switched or reloaded meanwhile.
+     */
+    private void loadOlder() {
+        String chat = currentChat;
+        HistoryStore store = history.getNow(null);
+        HistoryStore.Page page = oldest.get(chat);
+        if (loadingOlder || store == null || page == null || page.from() == 0) return;
+        loadingOlder = true;
+        CompletableFuture.supplyAsync(() -> store.before(chat, page, PAGE_LINES), BLOCKING)
+                .whenCompleteAsync((older, e) -> {
+                    loadingOlder = false;
+                    if (older == null || oldest.get(chat) != page) return;
+                    oldest.put(chat, older);
+                    messageList.getItems().addAll(0, parse(chat, older.lines()));
+                    messageList.scrollTo(older.lines().size());
+                }, Platform::runLater);
     }
 
-    private List<String> loadHistory(String chat) {
-        Path file = HISTORY_DIR.resolve(chat+".txt");
-        if (Files.exists(file)) {
-            try{return Files.readAllLines(file,StandardCharsets.UTF_8);}catch(IOException e){e.printStackTrace();}
+    private static List<ChatMessage> parse(String chat, List<String> lines) {
+        List<ChatMessage> messages = new ArrayList<>(lines.size());
+        for (String raw : lines) {
+            messages.add(ChatMessage.parse(chat, raw));
         }
-        return new ArrayList<>();
+        return messages;
     }
 
-    private void writeHistory(String chat,String line) {
-        Path file = HISTORY_DIR.resolve(chat+".txt");
-        try{Files.write(file,Collections.singletonList(line),StandardCharsets.UTF_8,
-                StandardOpenOption.CREATE,StandardOpenOption.APPEND);}catch(IOException e){e.printStackTrace();}
+    private void clearCurrentHistory() {
+        String chat = currentChat;
+        batcher.run(() -> {
+            ObservableList<ChatMessage> messages = chats.get(chat);
+            if (messages != null) messages.clear();
+            oldest.remove(chat);
+        });
+        history.join().delete(chat);
     }
 }
@@ -0,0 +1,506 @@
+package com.UI.chat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Chat histories on disk: one {@code <chat key>.txt} per chat, one line per
+ * message, appended as messages arrive and read back a page at a time,
+ * newest first, so opening a chat costs the same however long it has run.
+ * <p>
+ * Appending only queues the line. A background writer keeps each chat's
+ * files open and writes whatever has queued up since its last pass in one
+ * write per chat, so a busy room costs neither the listener thread nor a
+ * system call per line. Reads first write out what is queued; a
+ * {@link #mark} notes where a chat's history will end once what is queued
+ * now is written, so a page can be cut there without holding up whoever
+ * appends. When written
+ * lines are forced to disk is up to the {@link SyncPolicy}; {@link #close}
+ * writes and syncs everything.
+ * <p>
+ * Each history has a sidecar {@code <chat key>.idx} holding the byte offset
+ * of every line as an 8-byte big-endian number, so any line is one seek
+ * away. The index is extended on every append. One that doesn't match its
+ * history (written by an older version, or cut short by a crash) is ignored
+ * and rebuilt in the background, without holding up reads or writes
+ * except to index what was appended during the scan and swap the file in;
+ * meanwhile pages are found by mapping the history and scanning backwards
+ * for line breaks.
+ * <p>
+ * I/O errors are reported and otherwise ignored; history is a convenience,
+ * not a record.
+ */
+final class HistoryStore {
+    // Bytes mapped at a time while scanning for line breaks
+    private static final int WINDOW = 1 << 20;
+    private static final Page EMPTY = new Page(List.of(), 0, 0);
+    // Index rebuilds, one at a time in the background
+    private static final ExecutorService INDEXER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "history-index");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Consecutive lines of one history, oldest first.
+     * @param firstLine number of the first line, or -1 if it was found without the index
+     * @param from      byte offset of the first line; 0 means there is nothing older
+     */
+    record Page(List<String> lines, long firstLine, long from) {}
+
+    /**
+     * When written lines are forced to disk: {@code none} leaves it to the
+     * OS, {@code interval:N} syncs every N ms, {@code every:N} after every N
+     * lines of a chat.
+     */
+    record SyncPolicy(Mode mode, long n) {
+        enum Mode { NONE, INTERVAL, EVERY }
+
+        static SyncPolicy parse(String spec) {
+            String[] kv = spec.split(":");
+            Mode mode = Mode.valueOf(kv[0].trim().toUpperCase(Locale.ROOT));
+            long n = kv.length > 1 ? Long.parseLong(kv[1].trim()) : 0;
+            if (mode != Mode.NONE && n <= 0) throw new IllegalArgumentException("Bad history sync policy: " + spec);
+            return new SyncPolicy(mode, n);
+        }
+    }
+
+    // A line to write, or (with mark set instead) a position to report
+    private record Queued(String chat, String line, CompletableFuture<Long> mark) {}
+
+    /** The open files of one chat, and how much of them is written. */
+    private static final class Open {
+        final FileChannel file;
+        // Null while the index doesn't match the file; it is rebuilt and the chat reopened
+        final FileChannel idx;
+        long size;
+        int unsynced;
+
+        Open(FileChannel file, FileChannel idx, long size) {
+            this.file = file;
+            this.idx = idx;
+            this.size = size;
+        }
+
+        void close() throws IOException {
+            file.close();
+            if (idx != null) idx.close();
+        }
+    }
+
+    private final Path dir;
+    private final SyncPolicy sync;
+    private final Queue<Queued> queue = new ConcurrentLinkedQueue<>();
+    private final Thread writer;
+    // Under the lock, like every file access
+    private final Map<String, Open> open = new HashMap<>();
+    private long syncedAt = System.nanoTime();
+    // Chats whose index is being rebuilt
+    private final Set<String> rebuilding = ConcurrentHashMap.newKeySet();
+    // Bumped by every delete, under the lock, so a rebuild can tell its file is gone
+    private long deletions;
+
+    HistoryStore(Path dir, SyncPolicy sync) {
+        this.dir = dir;
+        this.sync = sync;
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        writer = new Thread(this::writeLoop, "history-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** The last {@code max} lines stored for {@code chat}; empty if there are none. */
+    Page tail(String chat, int max) {
+        return tail(chat, max, Long.MAX_VALUE);
+    }
+
+    /** The last {@code max} lines of {@code chat} that end by byte {@code end}, a position from {@link #mark}. */
+    synchronized Page tail(String chat, int max, long end) {
+        writeQueued();
+        try (FileChannel file = FileChannel.open(file(chat), StandardOpenOption.READ)) {
+            long size = file.size();
+            end = Math.min(end, size);
+            long lines = indexedLines(chat, file, size);
+            if (lines >= 0 && end < size) lines = lineStarting(chat, lines, end);
+            if (lines >= 0) return indexed(chat, file, Math.max(0, lines - max), lines, end);
+            return scanBack(file, end, max);
+        } catch (NoSuchFileException e) {
+            return EMPTY;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return EMPTY;
+        }
+    }
+
+    /** Up to {@code max} lines just before {@code page}; empty once the start is reached. */
+    synchronized Page before(String chat, Page page, int max) {
+        if (page.from() == 0) return EMPTY;
+        writeQueued();
+        try (FileChannel file = FileChannel.open(file(chat), StandardOpenOption.READ)) {
+            if (page.firstLine() >= 0 && indexedLines(chat, file, file.size()) >= 0) {
+                return indexed(chat, file, Math.max(0, page.firstLine() - max), page.firstLine(), page.from());
+            }
+            return scanBack(file, page.from(), max);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return EMPTY;
+        }
+    }
+
+    /** Queue {@code line} for the writer; never waits for the disk. */
+    void append(String chat, String line) {
+        queue.add(new Queued(chat, line, null));
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Where the history of {@code chat} will end once the lines appended so
+     * far are written: lines appended before this call lie before it, later
+     * ones after. Never waits; the position is known after the writer's next pass.
+     */
+    CompletableFuture<Long> mark(String chat) {
+        CompletableFuture<Long> mark = new CompletableFuture<>();
+        queue.add(new Queued(chat, null, mark));
+        LockSupport.unpark(writer);
+        return mark;
+    }
+
+    /** Write out and sync everything queued, and close the files; later appends reopen them. */
+    synchronized void close() {
+        writeQueued();
+        for (Open o : open.values()) {
+            try {
+                if (sync.mode() != SyncPolicy.Mode.NONE) o.file.force(false);
+                o.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        open.clear();
+    }
+
+    synchronized void delete(String chat) {
+        writeQueued();
+        closeChat(chat);
+        deletions++;
+        try {
+            Files.deleteIfExists(file(chat));
+            Files.deleteIfExists(index(chat));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // --- Writing ---
+
+    private void writeLoop() {
+        // Wake up for interval syncs even when nothing arrives
+        long idle = sync.mode() == SyncPolicy.Mode.INTERVAL ? TimeUnit.MILLISECONDS.toNanos(sync.n()) : Long.MAX_VALUE;
+        while (true) {
+            if (queue.isEmpty()) LockSupport.parkNanos(this, idle);
+            synchronized (this) {
+                writeQueued();
+                if (sync.mode() == SyncPolicy.Mode.INTERVAL && System.nanoTime() - syncedAt >= idle) {
+                    syncedAt = System.nanoTime();
+                    for (Open o : open.values()) {
+                        force(o);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Write every queued line, one write per chat for the file and one for its index. */
+    private void writeQueued() {
+        if (queue.isEmpty()) return;
+        Map<String, List<Queued>> byChat = new LinkedHashMap<>();
+        Queued q;
+        while ((q = queue.poll()) != null) {
+            byChat.computeIfAbsent(q.chat(), k -> new ArrayList<>()).add(q);
+        }
+        byChat.forEach((chat, items) -> {
+            try {
+                write(chat, items);
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeChat(chat);
+                // Whatever did get written is all there is to read
+                for (Queued i : items) {
+                    if (i.mark() != null) i.mark().complete(Long.MAX_VALUE);
+                }
+            }
+        });
+    }
+
+    private void write(String chat, List<Queued> items) throws IOException {
+        Open o = open.get(chat);
+        if (o == null && items.stream().allMatch(i -> i.mark() != null)) {
+            // Only marks: nothing to write, so don't create the files
+            long size = Files.exists(file(chat)) ? Files.size(file(chat)) : 0;
+            for (Queued i : items) i.mark().complete(size);
+            return;
+        }
+        if (o == null) {
+            o = openChat(chat);
+            open.put(chat, o);
+        }
+        ByteBuffer offsets = ByteBuffer.allocate(items.size() * Long.BYTES);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(items.size() * 64);
+        List<Queued> marks = new ArrayList<>();
+        List<Long> marked = new ArrayList<>();
+        int lines = 0;
+        for (Queued i : items) {
+            if (i.mark() != null) {
+                marks.add(i);
+                marked.add(o.size + bytes.size());
+                continue;
+            }
+            offsets.putLong(o.size + bytes.size());
+            bytes.writeBytes((i.line() + "\n").getBytes(StandardCharsets.UTF_8));
+            lines++;
+        }
+        writeFully(o.file, ByteBuffer.wrap(bytes.toByteArray()), o.size);
+        o.size += bytes.size();
+        if (o.idx != null) writeFully(o.idx, offsets.flip(), o.idx.size());
+        for (int i = 0; i < marks.size(); i++) {
+            marks.get(i).mark().complete(marked.get(i));
+        }
+        o.unsynced += lines;
+        if (sync.mode() == SyncPolicy.Mode.EVERY && o.unsynced >= sync.n()) force(o);
+    }
+
+    private Open openChat(String chat) throws IOException {
+        FileChannel file = FileChannel.open(file(chat), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long size = file.size();
+        // Only extend an index that is complete up to here, else it would hide the gap
+        if (size > 0 && indexedLines(chat, file, size) < 0) return new Open(file, null, size);
+        FileChannel idx = FileChannel.open(index(chat), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (size == 0) idx.truncate(0);
+        return new Open(file, idx, size);
+    }
+
+    private void closeChat(String chat) {
+        Open o = open.remove(chat);
+        if (o == null) return;
+        try {
+            o.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void force(Open o) {
+        if (o.unsynced == 0) return;
+        try {
+            o.file.force(false);
+            o.unsynced = 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            pos += ch.write(b, pos);
+        }
+    }
+
+    // --- Reading by index ---
+
+    /**
+     * How many lines the index of {@code chat} covers, if it covers exactly
+     * the first {@code size} bytes of its history; otherwise -1, and a
+     * rebuild is started.
+     */
+    private long indexedLines(String chat, FileChannel file, long size) throws IOException {
+        if (size == 0) return 0;
+        try (FileChannel idx = FileChannel.open(index(chat), StandardOpenOption.READ)) {
+            long lines = idx.size() / Long.BYTES;
+            // The first entry must be 0, the last line must start at its entry and be the only one after it
+            if (lines > 0 && idx.size() % Long.BYTES == 0 && offset(idx, 0) == 0) {
+                long last = offset(idx, lines - 1);
+                if (last < size && lastBreak(file, size - 1) == size - 1 && lastBreak(file, size - 2) < last) return lines;
+            }
+        } catch (NoSuchFileException e) {
+            // never built
+        }
+        if (rebuilding.add(chat)) INDEXER.execute(() -> rebuild(chat));
+        return -1;
+    }
+
+    /** Lines {@code first} (inclusive) to {@code last} (exclusive), the latter starting at byte {@code end}. */
+    private Page indexed(String chat, FileChannel file, long first, long last, long end) throws IOException {
+        if (first == last) return new Page(List.of(), first, end);
+        try (FileChannel idx = FileChannel.open(index(chat), StandardOpenOption.READ)) {
+            long from = offset(idx, first);
+            return new Page(decode(file, from, end), first, from);
+        }
+    }
+
+    /** The number of the line starting at byte {@code pos}, found in the first {@code lines} entries; -1 if none does. */
+    private long lineStarting(String chat, long lines, long pos) throws IOException {
+        try (FileChannel idx = FileChannel.open(index(chat), StandardOpenOption.READ)) {
+            long lo = 0, hi = lines - 1;
+            while (lo <= hi) {
+                long mid = (lo + hi) >>> 1;
+                long at = offset(idx, mid);
+                if (at == pos) return mid;
+                if (at < pos) lo = mid + 1;
+                else hi = mid - 1;
+            }
+            return -1;
+        }
+    }
+
+    private static long offset(FileChannel idx, long line) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(Long.BYTES);
+        while (b.hasRemaining()) {
+            if (idx.read(b, line * Long.BYTES + b.position()) < 0) throw new IOException("index truncated");
+        }
+        return b.getLong(0);
+    }
+
+    /**
+     * Write a fresh index of {@code chat}, replacing any stale one. The
+     * history is scanned without the lock; only the lines appended meanwhile
+     * are indexed under it, just before the new index is moved into place.
+     */
+    private void rebuild(String chat) {
+        Path tmp = dir.resolve(chat + ".idx.tmp");
+        long deleted;
+        synchronized (this) {
+            deleted = deletions;
+        }
+        try (FileChannel file = FileChannel.open(file(chat), StandardOpenOption.READ);
+             FileChannel idx = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size;
+            synchronized (this) {
+                // Writes happen under the lock, so this size ends on a whole line
+                size = file.size();
+            }
+            idx.write(ByteBuffer.allocate(Long.BYTES).putLong(0).flip());
+            indexBreaks(file, 0, size, idx);
+            synchronized (this) {
+                writeQueued();
+                if (deletions != deleted) {
+                    Files.deleteIfExists(tmp);
+                    return;
+                }
+                long end = file.size();
+                // The break ending the last scanned line now starts another one
+                indexBreaks(file, Math.max(0, size - 1), end, idx);
+                Files.move(tmp, index(chat), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                // Reopen with the new index on the next write
+                closeChat(chat);
+            }
+        } catch (NoSuchFileException e) {
+            // deleted before the rebuild got to it
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            rebuilding.remove(chat);
+        }
+    }
+
+    /** Append to {@code idx} the offset after every line break in bytes {@code from} to {@code end}, but not at {@code end}. */
+    private static void indexBreaks(FileChannel file, long from, long end, FileChannel idx) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(64 * Long.BYTES);
+        for (long start = from; start < end; start += WINDOW) {
+            MappedByteBuffer map = file.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW, end - start));
+            for (int i = 0; i < map.limit(); i++) {
+                long next = start + i + 1;
+                if (map.get(i) != '\n' || next == end) continue;
+                if (!out.hasRemaining()) {
+                    idx.write(out.flip());
+                    out.clear();
+                }
+                out.putLong(next);
+            }
+        }
+        idx.write(out.flip());
+    }
+
+    // --- Reading without an index ---
+
+    /** The last {@code max} lines ending at byte {@code end}, found by scanning backwards. */
+    private static Page scanBack(FileChannel file, long end, int max) throws IOException {
+        long from = 0;
+        int found = 0;
+        // Skip the break ending the last line; each one before it starts another line
+        long pos = end - 2;
+        search:
+        while (pos >= 0) {
+            long start = Math.max(0, pos + 1 - WINDOW);
+            MappedByteBuffer map = file.map(FileChannel.MapMode.READ_ONLY, start, pos + 1 - start);
+            for (int i = (int) (pos - start); i >= 0; i--) {
+                if (map.get(i) == '\n' && ++found == max) {
+                    from = start + i + 1;
+                    break search;
+                }
+            }
+            pos = start - 1;
+        }
+        return new Page(decode(file, from, end), -1, from);
+    }
+
+    /** Offset of the last line break at or before {@code pos}, or -1 if there is none. */
+    private static long lastBreak(FileChannel file, long pos) throws IOException {
+        while (pos >= 0) {
+            long start = Math.max(0, pos + 1 - WINDOW);
+            MappedByteBuffer map = file.map(FileChannel.MapMode.READ_ONLY, start, pos + 1 - start);
+            for (int i = (int) (pos - start); i >= 0; i--) {
+                if (map.get(i) == '\n') return start + i;
+            }
+            pos = start - 1;
+        }
+        return -1;
+    }
+
+    /** The lines in bytes {@code from} to {@code end}, each ended by a line break. */
+    private static List<String> decode(FileChannel file, long from, long end) throws IOException {
+        if (from >= end) return new ArrayList<>();
+        String text = StandardCharsets.UTF_8.decode(file.map(FileChannel.MapMode.READ_ONLY, from, end - from)).toString();
+        List<String> lines = new ArrayList<>();
+        Collections.addAll(lines, text.split("\r?\n"));
+        return lines;
+    }
+
+    private Path file(String chat) {
+        return dir.resolve(chat + ".txt");
+    }
+
+    private Path index(String chat) {
+        return dir.resolve(chat + ".idx");
+    }
+}
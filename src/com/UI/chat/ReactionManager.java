@@ -1,106 +1,166 @@
 package com.UI.chat;
 
-import javafx.application.Platform;
+import com.protocol.Transfer;
 import javafx.geometry.Pos;
 import javafx.scene.control.ContextMenu;
+import javafx.scene.control.Hyperlink;
 import javafx.scene.control.Label;
+import javafx.scene.control.Labeled;
+import javafx.scene.control.ListCell;
 import javafx.scene.control.MenuItem;
 import javafx.scene.input.MouseButton;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.StackPane;
+import javafx.stage.FileChooser;
 
+import java.io.File;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 
 /**
  * Manages emoji reactions on chat messages and "user is typing" indicators.
  */
 public class ReactionManager {
-    // message index -> (emoji -> set of users)
-    private final Map<Integer, Map<String, Set<String>>> reactions = new ConcurrentHashMap<>();
+    private final ReactionStore reactions = new ReactionStore();
     private final StackPane messageContainer;
-    private final ChatClient client;
-    private final IntConsumer refreshCallback;
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    // Null until the window is connected
+    private final Supplier<ChatClient> client;
+    private final Label typingLabel = new Label();
+    private final UiBatcher batcher;
+    // Cells the message list currently holds; only about a viewport's worth (FX thread only)
+    private final Set<MessageCell> cells = Collections.newSetFromMap(new WeakHashMap<>());
 
     /**
      * @param messageContainer  the Pane containing message list (for typing indicator)
-     * @param client            the ChatClient instance to send commands
-     * @param refreshCallback   callback to refresh a specific message index
+     * @param client            the ChatClient to send commands with, or null while connecting
+     * @param batcher           carries network updates to the FX thread
      */
-    public ReactionManager(StackPane messageContainer, ChatClient client, IntConsumer refreshCallback) {
+    ReactionManager(StackPane messageContainer, Supplier<ChatClient> client, UiBatcher batcher) {
         this.messageContainer = messageContainer;
         this.client = client;
-        this.refreshCallback = refreshCallback;
+        this.batcher = batcher;
+
+        typingLabel.setStyle("-fx-text-fill: gray; -fx-padding: 5;");
+        typingLabel.setVisible(false);
+        StackPane.setAlignment(typingLabel, Pos.BOTTOM_LEFT);
+        messageContainer.getChildren().add(typingLabel);
     }
 
     /**
-     * Show "sender is typing..." at bottom-left for 2 seconds.
+     * Show who is typing at bottom-left, replacing the previous state. The
+     * server sends the full set whenever it changes (and an empty one once
+     * everybody stopped), so no local timers are needed. Only the latest
+     * state in a pulse is drawn.
      */
-    public void userTyping(String sender, String chatKey) {
-        Platform.runLater(() -> {
-            Label label = new Label(sender + " is typing...");
-            label.setStyle("-fx-text-fill: gray; -fx-padding: 5;");
-            StackPane.setAlignment(label, Pos.BOTTOM_LEFT);
-            messageContainer.getChildren().add(label);
-            scheduler.schedule(() -> Platform.runLater(() -> messageContainer.getChildren().remove(label)),
-                    2, TimeUnit.SECONDS);
+    public void showTyping(List<String> typists) {
+        String text = switch (typists.size()) {
+            case 0 -> "";
+            case 1 -> typists.get(0) + " is typing...";
+            case 2, 3 -> String.join(", ", typists) + " are typing...";
+            default -> typists.size() + " people are typing...";
+        };
+        batcher.coalesce(typingLabel, () -> {
+            typingLabel.setText(text);
+            typingLabel.setVisible(!text.isEmpty());
         });
     }
 
+    /** A cell factory for the message list; see {@link MessageCell}. */
+    public ListCell<ChatMessage> newCell() {
+        MessageCell cell = new MessageCell();
+        cells.add(cell);
+        return cell;
+    }
+
     /**
-     * Wraps a message String into an HBox with reaction bubbles.
+     * Shows a message with its reaction bubbles. The list only creates
+     * enough of these to fill its viewport and rebinds them to other
+     * messages as it scrolls. Only lobby and room messages with a server ID
+     * can be reacted to. A message carrying an attachment is shown as a link
+     * that downloads it.
      */
-    public HBox wrapMessage(int index, String raw, String display) {
-        Label text = new Label(display);
-        text.setWrapText(true);
-        HBox box = new HBox(5, text);
-        box.setOnMouseClicked(evt -> {
-            if (evt.getButton() == MouseButton.SECONDARY) {
-                showMenu(index, evt.getScreenX(), evt.getScreenY());
+    private final class MessageCell extends ListCell<ChatMessage> {
+        private final Label text = new Label();
+        private final Hyperlink link = new Hyperlink();
+        private final HBox box = new HBox(5);
+
+        MessageCell() {
+            text.setWrapText(true);
+            link.setWrapText(true);
+            link.setOnAction(e -> download(getItem().attachment()));
+            box.setOnMouseClicked(evt -> {
+                ChatMessage m = getItem();
+                if (evt.getButton() == MouseButton.SECONDARY && m != null && m.id() > 0 && ChatClient.isRoom(m.chat())) {
+                    showMenu(m.chat(), m.id(), evt.getScreenX(), evt.getScreenY());
+                }
+            });
+        }
+
+        @Override
+        protected void updateItem(ChatMessage m, boolean empty) {
+            super.updateItem(m, empty);
+            if (empty || m == null) {
+                setGraphic(null);
+                return;
             }
-        });
-        Map<String, Set<String>> map = reactions.getOrDefault(index, Collections.emptyMap());
-        map.forEach((emoji, users) -> box.getChildren().add(new Label(emoji + " " + users.size())));
-        return box;
+            showReactions();
+            setGraphic(box);
+        }
+
+        /** Rebuild the row from the current item and its latest reaction counts. */
+        void showReactions() {
+            ChatMessage m = getItem();
+            Labeled label = m.attachment() == null ? text : link;
+            label.setText(m.display());
+            box.getChildren().setAll(label);
+            reactions.of(m.chat(), m.id()).forEach((emoji, count) -> box.getChildren().add(new Label(emoji + " " + count)));
+        }
+    }
+
+    /** Ask where to save {@code ref}, then download it there. */
+    private void download(Transfer.Ref ref) {
+        FileChooser chooser = new FileChooser();
+        chooser.setInitialFileName(ref.name());
+        File target = chooser.showSaveDialog(messageContainer.getScene().getWindow());
+        ChatClient c = client.get();
+        if (target != null && c != null) c.download(ref, target.toPath());
     }
 
     /**
      * Show emoji selection menu and send reaction command.
      */
-    private void showMenu(int idx, double x, double y) {
+    private void showMenu(String chat, long id, double x, double y) {
         ContextMenu menu = new ContextMenu();
         List<String> emojis = List.of("👍","❤️","😂","🎉","😢");
         for (String e : emojis) {
             MenuItem mi = new MenuItem(e);
-            mi.setOnAction(a -> sendReaction(idx, e));
+            mi.setOnAction(a -> sendReaction(chat, id, e));
             menu.getItems().add(mi);
         }
         menu.show(messageContainer.getScene().getWindow(), x, y);
     }
 
     /**
-     * Sends a /react command for the given message index and emoji.
+     * Sends a reaction for the given message ID and emoji.
      */
-    private void sendReaction(int idx, String emoji) {
-        client.sendMessage("/react " + idx + " " + emoji);
+    private void sendReaction(String chat, long id, String emoji) {
+        ChatClient c = client.get();
+        if (c != null) c.sendReaction(chat, id, emoji);
     }
 
     /**
-     * Handles incoming "REACTION <idx> <emoji> <user>" updates.
+     * Records the latest reaction counts of message {@code id} of {@code chat}
+     * and redraws the cell showing it, if any; a message scrolled out of view
+     * picks them up when it is next shown. Summaries for the same message
+     * arriving within one pulse are drawn once.
      */
-    public void handleReaction(String raw) {
-        String[] parts = raw.split(" ", 4);
-        int idx = Integer.parseInt(parts[1]);
-        String emoji = parts[2], user = parts[3];
-        reactions
-                .computeIfAbsent(idx, i -> new ConcurrentHashMap<>())
-                .computeIfAbsent(emoji, k -> ConcurrentHashMap.newKeySet())
-                .add(user);
-        Platform.runLater(() -> refreshCallback.accept(idx));
+    public void handleReaction(String chat, long id, Map<String, Integer> counts) {
+        reactions.set(chat, id, counts);
+        batcher.coalesce(Map.entry(chat, id), () -> {
+            for (MessageCell cell : cells) {
+                ChatMessage m = cell.getItem();
+                if (m != null && !cell.isEmpty() && m.id() == id && m.chat().equals(chat)) cell.showReactions();
+            }
+        });
     }
 }
@@ -0,0 +1,24 @@
+package com.UI.chat;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reaction counts per message, as last summarized by the server: chat key
+ * -> message ID -> emoji -> number of users. Written by the client's listener
+ * thread, read by the FX thread.
+ */
+final class ReactionStore {
+    private final Map<String, Map<Long, Map<String, Integer>>> reactions = new ConcurrentHashMap<>();
+
+    /** Replace the counts of message {@code id} of {@code chat}. */
+    void set(String chat, long id, Map<String, Integer> counts) {
+        reactions.computeIfAbsent(chat, k -> new ConcurrentHashMap<>()).put(id, Map.copyOf(counts));
+    }
+
+    /** Emoji -> count for one message; empty if it has no reactions. */
+    Map<String, Integer> of(String chat, long id) {
+        return reactions.getOrDefault(chat, Collections.emptyMap()).getOrDefault(id, Collections.emptyMap());
+    }
+}
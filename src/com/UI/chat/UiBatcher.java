@@ -0,0 +1,125 @@
+package com.UI.chat;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * Carries updates from the client's listener thread to the FX thread,
+ * applied together once per pulse rather than as one {@code runLater} each,
+ * so a burst of traffic costs the FX thread one pass per frame however many
+ * lines it brings.
+ * <ul>
+ *   <li>{@link #append}: new lines, added to each chat with one
+ *       {@code addAll} per pulse;</li>
+ *   <li>{@link #run}: one-off changes, applied in order with the lines;</li>
+ *   <li>{@link #coalesce}: state refreshes, of which only the latest per key
+ *       is applied, after everything else.</li>
+ * </ul>
+ * The pulse hook only runs while there is something to apply. The lag from
+ * a line's receipt to its pulse is printed every {@link #REPORT_SECONDS}
+ * seconds of traffic.
+ */
+final class UiBatcher {
+    private static final long REPORT_SECONDS = 10;
+
+    private record Append(String chat, ChatMessage message, long receivedNanos) {}
+
+    // Appends and one-off runnables, in arrival order
+    private final Queue<Object> ordered = new ConcurrentLinkedQueue<>();
+    private final Map<Object, Runnable> latest = new ConcurrentHashMap<>();
+    private final BiConsumer<String, List<ChatMessage>> appender;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            scheduled.set(false);
+            flush();
+            if (ordered.isEmpty() && latest.isEmpty()) stop();
+        }
+    };
+
+    // Lag since the last report (FX thread only)
+    private long reportedAt = System.nanoTime();
+    private long pulses, lines, lagSum, lagMax;
+
+    /** @param appender adds a run of new lines to a chat's list; called on the FX thread */
+    UiBatcher(BiConsumer<String, List<ChatMessage>> appender) {
+        this.appender = appender;
+    }
+
+    /** Add {@code message} to the end of {@code chat} at the next pulse. Any thread. */
+    void append(String chat, ChatMessage message) {
+        ordered.add(new Append(chat, message, System.nanoTime()));
+        schedule();
+    }
+
+    /** Run {@code change} at the next pulse, after the lines appended before it. Any thread. */
+    void run(Runnable change) {
+        ordered.add(change);
+        schedule();
+    }
+
+    /** Run {@code refresh} at the next pulse, unless another one for {@code key} replaces it first. Any thread. */
+    void coalesce(Object key, Runnable refresh) {
+        latest.put(key, refresh);
+        schedule();
+    }
+
+    /** Apply everything pending now, as a pulse would; FX thread only. */
+    void flush() {
+        long now = System.nanoTime();
+        Map<String, List<ChatMessage>> run = new LinkedHashMap<>();
+        Object next;
+        while ((next = ordered.poll()) != null) {
+            if (next instanceof Append a) {
+                run.computeIfAbsent(a.chat(), k -> new ArrayList<>()).add(a.message());
+                long lag = now - a.receivedNanos();
+                lines++;
+                lagSum += lag;
+                lagMax = Math.max(lagMax, lag);
+            } else {
+                // Lines that came before this change go in first
+                appendAll(run);
+                ((Runnable) next).run();
+            }
+        }
+        appendAll(run);
+        for (Object key : latest.keySet()) {
+            Runnable refresh = latest.remove(key);
+            if (refresh != null) refresh.run();
+        }
+        pulses++;
+        report(now);
+    }
+
+    private void appendAll(Map<String, List<ChatMessage>> run) {
+        run.forEach(appender);
+        run.clear();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) Platform.runLater(timer::start);
+    }
+
+    private void report(long now) {
+        if (now - reportedAt < TimeUnit.SECONDS.toNanos(REPORT_SECONDS)) return;
+        if (lines > 0) {
+            System.out.printf(Locale.ROOT, "UI: %d lines in %d pulses, render lag mean %.1f ms, max %.1f ms%n",
+                    lines, pulses, lagSum / 1e6 / lines, lagMax / 1e6);
+        }
+        reportedAt = now;
+        pulses = lines = lagSum = lagMax = 0;
+    }
+}
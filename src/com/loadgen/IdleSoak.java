@@ -0,0 +1,102 @@
+package com.loadgen;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Opens many idle chat connections from a single thread and keeps them
+ * alive, draining whatever the server sends and answering its pings. Used to compare the server's
+ * footprint across execution modes (run the server with {@code --stats}).
+ *
+ * Usage: {@code IdleSoak [host] [port] [connections] [sourceAddresses]}
+ * <p>
+ * A single source address runs out of ephemeral ports around 28k
+ * connections; {@code sourceAddresses > 1} binds round-robin to
+ * 127.0.0.1, 127.0.0.2, ... so loopback tests can go past that.
+ */
+public class IdleSoak {
+    public static void main(String[] args) throws IOException {
+        String host    = args.length > 0 ? args[0] : "localhost";
+        int port       = args.length > 1 ? Integer.parseInt(args[1]) : 5555;
+        int count      = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+        int sources    = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        Selector selector = Selector.open();
+        ByteBuffer drain = ByteBuffer.allocateDirect(64 * 1024);
+        InetSocketAddress server = new InetSocketAddress(host, port);
+
+        long start = System.nanoTime();
+        int open = 0;
+        for (int i = 0; i < count; i++) {
+            SocketChannel ch = SocketChannel.open();
+            if (sources > 1) ch.bind(new InetSocketAddress("127.0.0." + (1 + i % sources), 0));
+            ch.connect(server);
+            ch.write(ByteBuffer.wrap(("idle" + i + "\n").getBytes(StandardCharsets.UTF_8)));
+            ch.configureBlocking(false);
+            ch.register(selector, SelectionKey.OP_READ);
+            open++;
+            if (open % 1000 == 0) {
+                System.out.println("connected " + open + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            }
+            drainReady(selector, drain, 0);
+        }
+        System.out.println("holding " + open + " idle connections");
+
+        while (true) {
+            open -= drainReady(selector, drain, 1000);
+            if (open == 0) return;
+        }
+    }
+
+    private static final byte[] PING = "PING\n".getBytes(StandardCharsets.UTF_8);
+    private static final ByteBuffer PONG = ByteBuffer.wrap("/pong\n".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+
+    /** Read and discard pending input, answering pings; returns the number of connections the server closed. */
+    private static int drainReady(Selector selector, ByteBuffer drain, long timeoutMs) throws IOException {
+        int closed = 0;
+        if (timeoutMs == 0 ? selector.selectNow() == 0 : selector.select(timeoutMs) == 0) return 0;
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            SocketChannel ch = (SocketChannel) key.channel();
+            int n;
+            try {
+                boolean pinged = false;
+                do {
+                    drain.clear();
+                    n = ch.read(drain);
+                    if (n > 0) pinged |= contains(drain.flip(), PING);
+                } while (n > 0);
+                // An idle socket's send buffer is empty, so this small write always completes
+                if (pinged) ch.write(PONG.duplicate());
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                key.cancel();
+                ch.close();
+                closed++;
+            }
+        }
+        return closed;
+    }
+
+    /** Whether {@code b} contains {@code pattern} between position and limit. */
+    private static boolean contains(ByteBuffer b, byte[] pattern) {
+        outer:
+        for (int i = b.position(); i <= b.limit() - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (b.get(i + j) != pattern[j]) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+}
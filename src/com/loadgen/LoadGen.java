@@ -0,0 +1,188 @@
+package com.loadgen;
+
+import com.UI.chat.ChatClient;
+import com.UI.chat.ChatListener;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load generator: simulated users on real {@link ChatClient}s,
+ * added in steps, each running a scripted mix of room messages, whispers,
+ * typing and reactions. Every message carries its send time, and each
+ * receiving user records the delivery latency, so the report covers the
+ * whole path through the server.
+ *
+ * Usage: {@code LoadGen [--host=H] [--port=N] [--users=N] [--step=N] [--step-seconds=N]
+ *                  [--rate=ACTIONS_PER_USER_PER_SECOND] [--mix=say:70,whisper:10,typing:15,react:5]
+ *                  [--room-size=N] [--p99-limit-ms=N]}
+ * <p>
+ * Users join rooms of {@code --room-size} (0: everyone talks in the lobby).
+ * After each step of {@code --step} new users the load runs for
+ * {@code --step-seconds} and one line is printed: connections, actions and
+ * deliveries per second, and p50/p99/p999 delivery latency. The first step
+ * whose p99 exceeds {@code --p99-limit-ms} is reported as the point where
+ * latency degrades.
+ */
+public class LoadGen {
+    // Marks the send timestamp (System.nanoTime) inside a message
+    private static final String TAG = "lg@";
+    private static final long TICK_MS = 10;
+
+    enum Action { SAY, WHISPER, TYPING, REACT }
+
+    // Measurements for the current step; replaced at each step boundary
+    private static volatile LatencyHistogram latency = new LatencyHistogram();
+    private static final LongAdder actions = new LongAdder();
+    private static final LongAdder delivered = new LongAdder();
+
+    private static final List<User> users = new CopyOnWriteArrayList<>();
+
+    /** One simulated user: its client, the chat it talks in, and what it receives. */
+    private static final class User implements ChatListener {
+        final String nick;
+        final String chat;
+        ChatClient client;
+        // Last message seen in our chat, the target of our reactions
+        volatile long lastMessageId;
+
+        User(String nick, String chat) {
+            this.nick = nick;
+            this.chat = chat;
+        }
+
+        @Override
+        public void onLine(String chatKey, long id, String line) {
+            if (id > 0 && chatKey.equals(chat)) lastMessageId = id;
+            int at = line.indexOf(TAG);
+            // Our own whisper echoes back as "(whisper to ...)"; only the recipient's copy counts
+            if (at < 0 || line.startsWith("(whisper to ")) return;
+            try {
+                long sentNanos = Long.parseLong(line.substring(at + TAG.length()));
+                latency.record((System.nanoTime() - sentNanos) / 1000);
+                delivered.increment();
+            } catch (NumberFormatException ignored) {}
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String host = "localhost";
+        int port = 5555;
+        int maxUsers = 2000;
+        int step = 250;
+        int stepSeconds = 10;
+        double rate = 1.0;
+        Map<Action, Integer> mix = parseMix("say:70,whisper:10,typing:15,react:5");
+        int roomSize = 50;
+        long p99LimitMs = 100;
+        for (String arg : args) {
+            if (arg.startsWith("--host=")) host = arg.substring("--host=".length());
+            else if (arg.startsWith("--port=")) port = Integer.parseInt(arg.substring("--port=".length()));
+            else if (arg.startsWith("--users=")) maxUsers = Integer.parseInt(arg.substring("--users=".length()));
+            else if (arg.startsWith("--step=")) step = Integer.parseInt(arg.substring("--step=".length()));
+            else if (arg.startsWith("--step-seconds=")) stepSeconds = Integer.parseInt(arg.substring("--step-seconds=".length()));
+            else if (arg.startsWith("--rate=")) rate = Double.parseDouble(arg.substring("--rate=".length()));
+            else if (arg.startsWith("--mix=")) mix = parseMix(arg.substring("--mix=".length()));
+            else if (arg.startsWith("--room-size=")) roomSize = Integer.parseInt(arg.substring("--room-size=".length()));
+            else if (arg.startsWith("--p99-limit-ms=")) p99LimitMs = Long.parseLong(arg.substring("--p99-limit-ms=".length()));
+            else throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+
+        startDriver(rate, mix);
+
+        int degradedAt = 0;
+        long totalActions = 0, totalDelivered = 0, measuredSeconds = 0;
+        for (int target = Math.min(step, maxUsers); ; target = Math.min(target + step, maxUsers)) {
+            while (users.size() < target) {
+                int i = users.size();
+                String chat = roomSize > 0 ? "#load" + i / roomSize : ChatClient.LOBBY;
+                User u = new User("lg" + i, chat);
+                u.client = new ChatClient(host, port, u.nick, u);
+                if (roomSize > 0) u.client.joinRoom(chat);
+                users.add(u);
+            }
+
+            // Measure this step only, without the logins
+            LatencyHistogram h = new LatencyHistogram();
+            latency = h;
+            actions.reset();
+            delivered.reset();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(stepSeconds));
+            long a = actions.sum(), d = delivered.sum();
+            totalActions += a;
+            totalDelivered += d;
+            measuredSeconds += stepSeconds;
+
+            long p99 = h.percentile(0.99);
+            System.out.printf(Locale.ROOT, "users=%d actions/s=%d delivered/s=%d p50=%.1fms p99=%.1fms p999=%.1fms%n",
+                    target, a / stepSeconds, d / stepSeconds,
+                    h.percentile(0.50) / 1000.0, p99 / 1000.0, h.percentile(0.999) / 1000.0);
+            if (degradedAt == 0 && p99 > p99LimitMs * 1000) degradedAt = target;
+            if (target == maxUsers) break;
+        }
+
+        System.out.println("actions/s=" + totalActions / measuredSeconds + " delivered/s=" + totalDelivered / measuredSeconds);
+        if (degradedAt > 0) System.out.println("p99 latency passed " + p99LimitMs + " ms at " + degradedAt + " connections");
+        else System.out.println("p99 latency stayed under " + p99LimitMs + " ms up to " + maxUsers + " connections");
+        System.exit(0);
+    }
+
+    /** Every tick, each user acts with probability rate * tick, picking an action by the mix weights. */
+    private static void startDriver(double rate, Map<Action, Integer> mix) {
+        int totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+        double chance = rate * TICK_MS / 1000.0;
+        ScheduledExecutorService driver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "loadgen-driver");
+            t.setDaemon(true);
+            return t;
+        });
+        driver.scheduleAtFixedRate(() -> {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            int n = users.size();
+            for (int i = 0; i < n; i++) {
+                if (rnd.nextDouble() >= chance) continue;
+                int pick = rnd.nextInt(totalWeight);
+                for (Map.Entry<Action, Integer> e : mix.entrySet()) {
+                    pick -= e.getValue();
+                    if (pick < 0) {
+                        act(users.get(i), e.getKey(), n, rnd);
+                        break;
+                    }
+                }
+            }
+        }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void act(User u, Action action, int n, ThreadLocalRandom rnd) {
+        switch (action) {
+            case SAY     -> u.client.sendMessage(u.chat, TAG + System.nanoTime());
+            case WHISPER -> u.client.sendPrivate(users.get(rnd.nextInt(n)).nick, TAG + System.nanoTime());
+            case TYPING  -> u.client.sendTyping(u.chat);
+            case REACT   -> {
+                long id = u.lastMessageId;
+                if (id == 0) return;
+                u.client.sendReaction(u.chat, id, "👍");
+            }
+        }
+        actions.increment();
+    }
+
+    /** "say:70,whisper:10,..." -> weights, in a fixed order. */
+    private static Map<Action, Integer> parseMix(String spec) {
+        Map<Action, Integer> mix = new EnumMap<>(Action.class);
+        for (String part : spec.split(",")) {
+            String[] kv = part.split(":");
+            mix.put(Action.valueOf(kv[0].trim().toUpperCase(Locale.ROOT)), Integer.parseInt(kv[1].trim()));
+        }
+        return mix;
+    }
+}
@@ -0,0 +1,152 @@
+package com.protocol;
+
+/**
+ * Opcodes of the binary protocol. Every frame is
+ * {@code [varint length][opcode][fields...]}; the comment on each opcode
+ * lists its fields in order ({@code varint}, {@code string} or
+ * {@code strings} = varint count followed by that many strings,
+ * {@code varints} = varint count followed by that many varints,
+ * {@code bytes} = varint length followed by that many raw bytes).
+ * A {@code room} is a room name, or {@code "All"} for the lobby every
+ * client is in. A {@code messageId} is the server-assigned ID of a logged
+ * chat or whisper message (never 0).
+ */
+public final class Op {
+    // --- client -> server ---
+    /** string room, string text: a chat line, never interpreted as a command */
+    public static final int SAY = 0x01;
+    /** string target, string text */
+    public static final int WHISPER = 0x02;
+    /** string room */
+    public static final int TYPING = 0x03;
+    /** string room, varint messageId, string emoji */
+    public static final int REACT = 0x04;
+    /** string nickname */
+    public static final int ADD_FRIEND = 0x05;
+    /** (no fields) */
+    public static final int CLEAR = 0x06;
+    /** string line: a slash command typed by the user, parsed like the text protocol */
+    public static final int COMMAND = 0x07;
+    /** string room */
+    public static final int JOIN = 0x08;
+    /** string room */
+    public static final int PART = 0x09;
+    /** string key, varint afterId: replay what was missed after message afterId in a room, or "@" for our whispers */
+    public static final int RESUME = 0x0A;
+    /** (no fields): answer to PING */
+    public static final int PONG = 0x0B;
+    /**
+     * string room, string name, varint size, varint tag: ask to attach a file to
+     * a chat; answered with UPLOAD_READY carrying the same tag, or a NOTICE if refused
+     */
+    public static final int UPLOAD = 0x0C;
+
+    // --- server -> client ---
+    /** Sent as the text line {@link Wire#HELLO_OK} to acknowledge the switch to binary. */
+    public static final int HELLO_OK = 0x40;
+    /** string room, varint messageId, string nickname, string text */
+    public static final int CHAT = 0x41;
+    /** string text: join/leave announcements and (SYSTEM) messages */
+    public static final int NOTICE = 0x42;
+    /** varint messageId, string from, string text */
+    public static final int WHISPER_FROM = 0x43;
+    /** varint messageId, string to, string text */
+    public static final int WHISPER_TO = 0x44;
+    /** strings nicknames: the online users, or the last chunk of them after USER_LIST_PARTs */
+    public static final int USER_LIST = 0x45;
+    /** string nickname */
+    public static final int USER_JOIN = 0x46;
+    /** string nickname */
+    public static final int USER_LEAVE = 0x47;
+    /** string nickname */
+    public static final int NICK_TAKEN = 0x48;
+    /** string room, strings nicknames */
+    public static final int TYPING_SET = 0x49;
+    /** (no fields) */
+    public static final int CLEAR_HISTORY = 0x4B;
+    /** string nickname */
+    public static final int FRIEND_ADDED = 0x4C;
+    /** string room: the receiver is now a member */
+    public static final int ROOM_JOINED = 0x4D;
+    /** string room: the receiver is no longer a member */
+    public static final int ROOM_PARTED = 0x4E;
+    /** string key: the replay requested by RESUME starts; frames for key queued before this were replayed too */
+    public static final int REPLAY_BEGIN = 0x4F;
+    /** string key: the replay is complete, later frames for key are live */
+    public static final int REPLAY_END = 0x50;
+    /**
+     * string room, varint messageId, strings emojis, varints counts: how many
+     * users reacted to the message with each emoji, replacing any earlier summary
+     */
+    public static final int REACTION_SUMMARY = 0x51;
+    /** (no fields): the server has heard nothing for a while; answer with PONG or be disconnected */
+    public static final int PING = 0x52;
+    /**
+     * string command, varint retryAfterMillis: a command of this kind ({@code chat},
+     * {@code whisper}, {@code react}, {@code typing}, or {@code any} for all of them)
+     * was dropped for exceeding its rate limit; more are dropped until a token is
+     * available again. Not repeated until the client has slowed down enough for its
+     * allowance to refill completely.
+     */
+    public static final int THROTTLED = 0x53;
+    /**
+     * varint tag, string id, string key, varint port: the upload with this tag may
+     * now be sent as {@code PUT id key} to the attachment port (see {@link Transfer})
+     */
+    public static final int UPLOAD_READY = 0x54;
+    /** string reason: the nickname was refused as malformed; the connection closes after this */
+    public static final int NICK_INVALID = 0x55;
+    /**
+     * strings nicknames: one chunk of a user list too long for one frame; the
+     * USER_LIST that follows carries the last chunk and completes it
+     */
+    public static final int USER_LIST_PART = 0x56;
+    /**
+     * string room, varint messageId, string nickname, string name, varint size,
+     * string id, varint port: a file attached to a room, fetched as
+     * {@code GET id ...} from the attachment port (see {@link Transfer})
+     */
+    public static final int ATTACHMENT = 0x57;
+    /**
+     * string token: the nickname was accepted. A reconnecting client that
+     * quotes the token in its hello (see {@link Wire}) takes over this
+     * session if the server still holds it, instead of being told NICK_TAKEN.
+     */
+    public static final int LOGIN_OK = 0x58;
+
+    // --- server <-> server (cluster peer link) ---
+    /**
+     * string nodeId, bytes nonce, then in the accepting node's reply only
+     * bytes proof: first frame in each direction. The proof is the
+     * acceptor's HMAC of the dialer's nonce under the cluster secret.
+     */
+    public static final int PEER_HELLO = 0x60;
+    /** strings nicknames: one chunk of the sender's local users, sent after PEER_HELLO */
+    public static final int PEER_USERS = 0x61;
+    /** (no fields): the PEER_USERS snapshot is complete and replaces what we knew of the sender */
+    public static final int PEER_SYNCED = 0x62;
+    /** string nickname: logged in on the sender */
+    public static final int PEER_USER_JOIN = 0x63;
+    /** string nickname: logged out of the sender */
+    public static final int PEER_USER_LEAVE = 0x64;
+    /** string room, bytes frame: a complete server -> client frame for the receiver's members of room */
+    public static final int PEER_PUBLISH = 0x65;
+    /** string target, bytes frame: a WHISPER_FROM frame for a user on the receiver */
+    public static final int PEER_WHISPER = 0x66;
+    /** string room, string nickname */
+    public static final int PEER_TYPING = 0x67;
+    /** string room, string nickname */
+    public static final int PEER_STOPPED = 0x68;
+    /** string room, varint messageId, string emoji, string nickname: a reaction accepted by the sender */
+    public static final int PEER_REACT = 0x69;
+    /**
+     * bytes proof: the dialing node's HMAC of the acceptor's nonce under the
+     * cluster secret, sent after PEER_HELLO; nothing else is accepted before it
+     */
+    public static final int PEER_AUTH = 0x6A;
+
+    /** Size of opcode-indexed dispatch tables. */
+    public static final int TABLE_SIZE = 0x80;
+
+    private Op() {}
+}
@@ -0,0 +1,72 @@
+package com.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The attachment channel, a connection of its own to the server's
+ * attachment port so file bytes never queue behind (or ahead of) chat
+ * frames. Each connection carries one request line and then raw bytes:
+ * <ul>
+ *   <li>{@code PUT <id> <key>}: the server answers {@code OFFSET <n>}, the
+ *       number of bytes it already has, and the client sends the rest of
+ *       the file. Once all of it has arrived the server answers
+ *       {@code DONE} and posts the attachment in the room as an
+ *       {@link Op#ATTACHMENT}. The id and key come from {@link Op#UPLOAD_READY}.</li>
+ *   <li>{@code GET <id> <offset> [<length>]}: the server answers
+ *       {@code SIZE <total>} and sends that range of the file (to the end
+ *       if no length is given), so an interrupted download resumes where it
+ *       stopped.</li>
+ * </ul>
+ * Failures are answered with {@code ERR <reason>} and the connection is
+ * closed.
+ */
+public final class Transfer {
+    // Upper bound for a request or response line
+    public static final int MAX_LINE = 512;
+
+    private static final String MARK = "📎 ";
+    private static final String SCHEME = " attach:";
+
+    /** An attachment as referenced from a chat line. */
+    public record Ref(String name, long size, int port, String id) {}
+
+    private Transfer() {}
+
+    /**
+     * The line-protocol text of an attachment, readable as is. Binary clients
+     * get an {@link Op#ATTACHMENT} instead, so typed text that merely looks
+     * like this is never taken for a file.
+     */
+    public static String reference(String name, long size, int port, String id) {
+        return label(name, size) + SCHEME + port + "/" + id;
+    }
+
+    /** How an attachment reads in a chat: its name and size. */
+    public static String label(String name, long size) {
+        return MARK + name + " (" + size + " bytes)";
+    }
+
+    /** Read one {@code \n}-terminated line, a byte at a time so nothing after it is consumed. */
+    public static String readLine(ReadableByteChannel ch) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        ByteBuffer b = ByteBuffer.allocate(1);
+        while (true) {
+            b.clear();
+            if (ch.read(b) < 0) throw new EOFException("connection closed");
+            byte c = b.get(0);
+            if (c == '\n') return line.toString(StandardCharsets.UTF_8);
+            if (line.size() >= MAX_LINE) throw new IOException("line too long");
+            line.write(c);
+        }
+    }
+
+    /** The bytes of {@code line} plus its terminator. */
+    public static ByteBuffer line(String line) {
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,71 @@
+package com.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Handshake constants and stream helpers shared by client and server.
+ * <p>
+ * A binary-capable client sends {@code HELLO + ' ' + nickname} as its first
+ * line instead of the bare nickname. A server that understands it answers
+ * with the text line {@link #HELLO_OK} and from then on both sides exchange
+ * length-prefixed frames (see {@link Op}); any other answer means the server
+ * only speaks the line protocol. The server accepts the nickname with
+ * {@link Op#LOGIN_OK}, whose token a reconnecting client appends to its
+ * hello ({@code HELLO + ' ' + nickname + ' ' + token}) to take over its
+ * previous session, should the server not have noticed yet that it died.
+ * <p>
+ * A line-protocol client gets chat and whisper lines exactly as before
+ * message IDs existed, unless its first line is {@code TEXT_IDS + ' ' +
+ * nickname}: then those lines start with {@code ID <messageId> }, which
+ * {@code /react} and {@code /resume} refer to. There is no reply; a server
+ * without IDs takes the whole line as a nickname.
+ */
+public final class Wire {
+    public static final String HELLO = "\u0001BIN1";
+    public static final String HELLO_OK = "BIN1 OK";
+    public static final String TEXT_IDS = "\u0001IDS1";
+    // Upper bound for one frame or one text line
+    public static final int MAX_FRAME = 64 * 1024;
+
+    private Wire() {}
+
+    /** Read one {@code \n}-terminated UTF-8 line (without {@code \r}); null at end of stream. */
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            if (b == '\r') continue;
+            if (line.size() >= MAX_FRAME) throw new IOException("line too long");
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    /** Read one length-prefixed frame body; null at a clean end of stream. */
+    public static byte[] readFrame(InputStream in) throws IOException {
+        return readFrame(in, MAX_FRAME);
+    }
+
+    /** Read one length-prefixed frame body of at most {@code max} bytes; null at a clean end of stream. */
+    public static byte[] readFrame(InputStream in, int max) throws IOException {
+        int len = 0, shift = 0, b;
+        do {
+            b = in.read();
+            if (b < 0) {
+                if (shift == 0) return null;
+                throw new EOFException("truncated frame length");
+            }
+            len |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 28);
+        if ((b & 0x80) != 0 || len > max) throw new IOException("frame too large");
+        byte[] body = in.readNBytes(len);
+        if (body.length < len) throw new EOFException("truncated frame");
+        return body;
+    }
+}
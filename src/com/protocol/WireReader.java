@@ -0,0 +1,70 @@
+package com.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the fields of one frame body (as returned by {@link Wire#readFrame}).
+ * Malformed input raises {@link IllegalArgumentException}.
+ */
+public final class WireReader {
+    private final byte[] buf;
+    private int pos;
+
+    public WireReader(byte[] body) {
+        this.buf = body;
+    }
+
+    public int op() {
+        return byte0() & 0xff;
+    }
+
+    public long varint() {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = byte0();
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    public String string() {
+        long len = varint();
+        if (len > buf.length - pos) throw new IllegalArgumentException("truncated string");
+        String s = new String(buf, pos, (int) len, StandardCharsets.UTF_8);
+        pos += (int) len;
+        return s;
+    }
+
+    public List<String> strings() {
+        long n = varint();
+        if (n > buf.length - pos) throw new IllegalArgumentException("bad string count");
+        List<String> out = new ArrayList<>((int) n);
+        for (long i = 0; i < n; i++) out.add(string());
+        return out;
+    }
+
+    public long[] varints() {
+        long n = varint();
+        if (n > buf.length - pos) throw new IllegalArgumentException("bad varint count");
+        long[] out = new long[(int) n];
+        for (int i = 0; i < n; i++) out[i] = varint();
+        return out;
+    }
+
+    public byte[] bytes() {
+        long len = varint();
+        if (len > buf.length - pos) throw new IllegalArgumentException("truncated bytes");
+        byte[] b = Arrays.copyOfRange(buf, pos, pos + (int) len);
+        pos += (int) len;
+        return b;
+    }
+
+    private int byte0() {
+        if (pos >= buf.length) throw new IllegalArgumentException("truncated frame");
+        return buf[pos++];
+    }
+}
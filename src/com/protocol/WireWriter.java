@@ -0,0 +1,79 @@
+package com.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Builds one binary frame: {@code [varint length][opcode][fields...]}.
+ */
+public final class WireWriter {
+    // Room for the length prefix, which is only known at the end
+    private static final int HEADER = 5;
+
+    private byte[] buf = new byte[64];
+    private int pos = HEADER;
+
+    public WireWriter(int op) {
+        buf[pos++] = (byte) op;
+    }
+
+    public WireWriter varint(long v) {
+        ensure(10);
+        while ((v & ~0x7fL) != 0) {
+            buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+        return this;
+    }
+
+    public WireWriter string(String s) {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        varint(utf8.length);
+        ensure(utf8.length);
+        System.arraycopy(utf8, 0, buf, pos, utf8.length);
+        pos += utf8.length;
+        return this;
+    }
+
+    public WireWriter strings(Collection<String> values) {
+        varint(values.size());
+        for (String s : values) string(s);
+        return this;
+    }
+
+    public WireWriter varints(long[] values) {
+        varint(values.length);
+        for (long v : values) varint(v);
+        return this;
+    }
+
+    public WireWriter bytes(byte[] value) {
+        varint(value.length);
+        ensure(value.length);
+        System.arraycopy(value, 0, buf, pos, value.length);
+        pos += value.length;
+        return this;
+    }
+
+    /** The finished frame, length prefix included. */
+    public byte[] toByteArray() {
+        int bodyLen = pos - HEADER;
+        int prefixLen = 1;
+        for (int v = bodyLen >>> 7; v != 0; v >>>= 7) prefixLen++;
+        int start = HEADER - prefixLen;
+        int p = start;
+        int v = bodyLen;
+        while ((v & ~0x7f) != 0) {
+            buf[p++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buf[p] = (byte) v;
+        return Arrays.copyOfRange(buf, start, pos);
+    }
+
+    private void ensure(int extra) {
+        if (pos + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + extra));
+    }
+}
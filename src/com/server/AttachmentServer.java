@@ -0,0 +1,323 @@
+package com.server;
+
+import com.protocol.Transfer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Chat attachments, kept off the chat connections: a client asks for an
+ * upload with {@link com.protocol.Op#UPLOAD}, gets an id and a one-time key
+ * back, and sends the file over a connection of its own to the attachment
+ * port (see {@link Transfer}). Each transfer runs on its own virtual thread.
+ * <p>
+ * Uploads are streamed to {@code <id>.part} in the spool directory with
+ * {@link FileChannel#transferFrom} and renamed to {@code <id>} once
+ * complete; a dropped upload resumes from what the part file holds. Only
+ * then is the attachment's reference posted in the room. Downloads are
+ * served from the file with {@link FileChannel#transferTo}, so the bytes go
+ * from the page cache to the socket without passing through the heap, and
+ * may start at any offset. Transfers that make no progress for
+ * {@link #STALL_MILLIS} are closed; grants not completed within
+ * {@link #GRANT_MILLIS}, and attachments older than the log retention, are
+ * deleted.
+ * <p>
+ * The spool as a whole is capped: each grant reserves its full size, and a
+ * grant that would take the spool past the cap is refused until expiry frees
+ * room. An upload whose sender has since left the room (or logged out) is
+ * deleted instead of posted.
+ * <p>
+ * Files are served only by the node that received them.
+ */
+final class AttachmentServer {
+    // Bytes per transferFrom/transferTo call; progress is noted between calls
+    private static final long CHUNK = 1 << 20;
+    private static final long STALL_MILLIS = 60_000;
+    private static final long GRANT_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long SWEEP_SECONDS = 10;
+    private static final int MAX_NAME = 255;
+
+    static final LongAdder COMPLETED = new LongAdder();
+    static final LongAdder BYTES_RECEIVED = new LongAdder();
+    static final LongAdder BYTES_SENT = new LongAdder();
+
+    /** An upload granted but not yet complete. */
+    private record Grant(String room, String nick, String name, long size, byte[] key,
+                         long grantedAt, AtomicBoolean busy) {}
+
+    /** A transfer in progress, for the stall check. */
+    private static final class Session {
+        final SocketChannel channel;
+        volatile long lastProgress = System.currentTimeMillis();
+
+        Session(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Grant> grants = new ConcurrentHashMap<>();
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    // Bytes on disk plus the unreceived rest of every open grant
+    private final AtomicLong spooled = new AtomicLong();
+    private Path spool;
+    private long maxBytes;
+    private long maxSpoolBytes;
+    private long retentionMillis;
+    // 0 until started: attachments are off
+    private volatile int port;
+
+    /**
+     * Listen on {@code port} and keep files in {@code spool}, accepting uploads of up to
+     * {@code maxBytes} while the spool holds less than {@code maxSpoolBytes}.
+     */
+    void start(int port, Path spool, long maxBytes, long maxSpoolBytes, long retentionMillis) throws IOException {
+        Files.createDirectories(spool);
+        this.spool = spool;
+        this.maxBytes = maxBytes;
+        this.maxSpoolBytes = maxSpoolBytes;
+        // Files left by an earlier run count until the sweep deletes them
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spool)) {
+            for (Path f : files) spooled.addAndGet(Files.size(f));
+        }
+        this.retentionMillis = retentionMillis;
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        this.port = port;
+
+        Thread acceptor = new Thread(() -> accept(server), "attachment-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "attachment-sweep");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_SECONDS, SWEEP_SECONDS, TimeUnit.SECONDS);
+        System.out.println("Attachments on port " + port + ", spooled in " + spool.toAbsolutePath());
+    }
+
+    boolean enabled() {
+        return port > 0;
+    }
+
+    int port() {
+        return port;
+    }
+
+    long maxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Grant {@code nick} an upload of {@code name} to {@code room}, reserving
+     * {@code size} bytes of the spool.
+     * @return the id and key to upload with, or null if the spool is full
+     */
+    String[] grant(String room, String nick, String name, long size) {
+        if (spooled.addAndGet(size) > maxSpoolBytes) {
+            spooled.addAndGet(-size);
+            return null;
+        }
+        HexFormat hex = HexFormat.of();
+        byte[] id = new byte[16], key = new byte[16];
+        random.nextBytes(id);
+        random.nextBytes(key);
+        String[] idKey = {hex.formatHex(id), hex.formatHex(key)};
+        grants.put(idKey[0], new Grant(room, nick, name, size, idKey[1].getBytes(StandardCharsets.UTF_8),
+                System.currentTimeMillis(), new AtomicBoolean()));
+        return idKey;
+    }
+
+    /** Whether {@code name} may be offered as a file name: no path, no control characters. */
+    static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME || name.equals(".") || name.equals("..")) return false;
+        for (int i = 0; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (ch < ' ' || ch == '/' || ch == '\\' || ch == 0x7f) return false;
+        }
+        return true;
+    }
+
+    // --- Transfers ---
+
+    private void accept(ServerSocketChannel server) {
+        Thread.Builder threads = Thread.ofVirtual().name("attachment-", 0);
+        while (true) {
+            try {
+                SocketChannel ch = server.accept();
+                threads.start(() -> serve(ch));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void serve(SocketChannel ch) {
+        Session s = new Session(ch);
+        sessions.add(s);
+        try (ch) {
+            String[] request = Transfer.readLine(ch).split(" ");
+            try {
+                if (request.length == 3 && request[0].equals("PUT")) {
+                    put(s, request[1], request[2]);
+                } else if ((request.length == 3 || request.length == 4) && request[0].equals("GET")) {
+                    get(s, request[1], Long.parseLong(request[2]), request.length == 4 ? Long.parseLong(request[3]) : -1);
+                } else {
+                    reply(ch, "ERR bad request");
+                }
+            } catch (NumberFormatException e) {
+                reply(ch, "ERR bad request");
+            }
+        } catch (IOException e) {
+            // Dropped or stalled; an upload resumes from its part file
+        } finally {
+            sessions.remove(s);
+        }
+    }
+
+    /** Receive the rest of an upload, then publish it. */
+    private void put(Session s, String id, String key) throws IOException {
+        Grant g = grants.get(id);
+        if (g == null || !MessageDigest.isEqual(g.key(), key.getBytes(StandardCharsets.UTF_8))) {
+            reply(s.channel, "ERR unknown upload");
+            return;
+        }
+        if (!g.busy().compareAndSet(false, true)) {
+            reply(s.channel, "ERR upload in progress");
+            return;
+        }
+        try {
+            if (!ChatServer.isMember(g.nick(), g.room())) {
+                drop(id, g, spool.resolve(id + ".part"));
+                reply(s.channel, "ERR not in room " + g.room());
+                return;
+            }
+            Path part = spool.resolve(id + ".part");
+            try (FileChannel file = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                long pos = Math.min(file.size(), g.size());
+                reply(s.channel, "OFFSET " + pos);
+                while (pos < g.size()) {
+                    long n = file.transferFrom(s.channel, pos, Math.min(CHUNK, g.size() - pos));
+                    if (n == 0) return;     // the client went away; keep what we have
+                    pos += n;
+                    BYTES_RECEIVED.add(n);
+                    s.lastProgress = System.currentTimeMillis();
+                }
+                file.force(false);
+            }
+            Files.move(part, spool.resolve(id), StandardCopyOption.ATOMIC_MOVE);
+            // The sender may have left while the bytes were arriving
+            if (!ChatServer.postAttachment(g.room(), g.nick(), g.name(), g.size(), id, port)) {
+                drop(id, g, spool.resolve(id));
+                reply(s.channel, "ERR not in room " + g.room());
+                return;
+            }
+            grants.remove(id);
+            COMPLETED.increment();
+            reply(s.channel, "DONE");
+        } finally {
+            g.busy().set(false);
+        }
+    }
+
+    /** Forget grant {@code id}, delete its file and give its reservation back. */
+    private void drop(String id, Grant g, Path file) throws IOException {
+        if (grants.remove(id, g)) {
+            Files.deleteIfExists(file);
+            spooled.addAndGet(-g.size());
+        }
+    }
+
+    /** Send {@code length} bytes (-1: the rest) of an attachment from {@code offset}. */
+    private void get(Session s, String id, long offset, long length) throws IOException {
+        if (!isId(id)) {
+            reply(s.channel, "ERR no such attachment");
+            return;
+        }
+        try (FileChannel file = FileChannel.open(spool.resolve(id), StandardOpenOption.READ)) {
+            long total = file.size();
+            if (offset < 0 || offset > total || length < -1) {
+                reply(s.channel, "ERR bad range");
+                return;
+            }
+            long end = length < 0 ? total : Math.min(total, offset + length);
+            reply(s.channel, "SIZE " + total);
+            for (long pos = offset; pos < end; ) {
+                long n = file.transferTo(pos, Math.min(CHUNK, end - pos), s.channel);
+                pos += n;
+                BYTES_SENT.add(n);
+                s.lastProgress = System.currentTimeMillis();
+            }
+        } catch (NoSuchFileException e) {
+            reply(s.channel, "ERR no such attachment");
+        }
+    }
+
+    /** Ids are 32 hex digits; anything else must not reach the file system. */
+    private static boolean isId(String id) {
+        return id.length() == 32 && id.chars().allMatch(HexFormat::isHexDigit);
+    }
+
+    private static void reply(SocketChannel ch, String line) throws IOException {
+        ByteBuffer b = Transfer.line(line);
+        while (b.hasRemaining()) ch.write(b);
+    }
+
+    // --- Housekeeping ---
+
+    /** Close stalled transfers, drop abandoned uploads and expire old attachments. */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (Session s : sessions) {
+            if (now - s.lastProgress > STALL_MILLIS) {
+                try { s.channel.close(); } catch (IOException ignored) {}
+            }
+        }
+        grants.entrySet().removeIf(e -> {
+            Grant g = e.getValue();
+            if (now - g.grantedAt() < GRANT_MILLIS || g.busy().get()) return false;
+            try { Files.deleteIfExists(spool.resolve(e.getKey() + ".part")); } catch (IOException ignored) {}
+            spooled.addAndGet(-g.size());
+            return true;
+        });
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spool)) {
+            for (Path f : files) {
+                String name = f.getFileName().toString();
+                long age = now - Files.getLastModifiedTime(f).toMillis();
+                // Part files without a grant were left by an earlier run
+                boolean orphan = name.endsWith(".part") && age > GRANT_MILLIS
+                        && !grants.containsKey(name.substring(0, name.length() - ".part".length()));
+                if (orphan || (isId(name) && age > retentionMillis)) {
+                    long size = Files.size(f);
+                    if (Files.deleteIfExists(f)) spooled.addAndGet(-size);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,150 +1,1012 @@
 package com.server;
 
+import com.protocol.Op;
+import com.protocol.Wire;
+import com.protocol.WireReader;
+
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
 
 public class ChatServer {
-    private static final int PORT = 5555;
-    // All connected clients
-    private static final Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
-    // All active nicknames
-    private static final Set<String> userNames = ConcurrentHashMap.newKeySet();
+    private static int port = 5555;
+    // All connected clients, including those that have not sent a nickname yet
+    private static final Set<Connection> clients = ConcurrentHashMap.newKeySet();
+    // Logged-in clients by nickname
+    static final Presence presence = new Presence();
+    // Named room subscriptions; the lobby is everyone in presence
+    private static final Rooms rooms = new Rooms();
+    // Who is typing where; emits periodic TYPING_SET digests
+    static final TypingTracker typing = new TypingTracker();
+    // Reaction counts per message; emits periodic REACTION_SUMMARY frames
+    static final ReactionTracker reactions = new ReactionTracker();
+    // Peer links to the other nodes; inert unless --peer-port is given
+    static final Cluster cluster = new Cluster();
+    // File uploads and downloads on their own port; off unless --attachment-port is given
+    static final AttachmentServer attachments = new AttachmentServer();
+    // Every chat and whisper message, by ID
+    private static MessageLog log;
+    // Recent logged frames per room / @nickname, for reconnecting clients
+    private static ReplayBuffer replay;
+    // How many log records a resume may scan when the replay buffer doesn't reach back far enough
+    private static final int MAX_REPLAY_SCAN = 100_000;
+    // Resume tokens handed out at login
+    private static final SecureRandom TOKENS = new SecureRandom();
+    // Longest nickname accepted at login
+    private static final int MAX_NICK_LENGTH = 32;
+    // How often replay rings and reaction counts of empty rooms and departed users are dropped
+    private static final long IDLE_SWEEP_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // A client that reconnects within this window doesn't cause left/joined notices
+    private static final long RECONNECT_GRACE_MILLIS = 5000;
+    // Nicknames that logged out within the grace window, each with the marker of its pending "left" notice
+    private static final Map<String, Object> leaving = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "timers");
+        t.setDaemon(true);
+        return t;
+    });
+    // Message log reads on behalf of clients, kept off reader threads and NIO reactors
+    private static final ExecutorService logReaders = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "log-reader");
+        t.setDaemon(true);
+        return t;
+    });
+    // Outbound queue bound and slow-consumer handling, shared by all connections
+    static OutboundQueue.Policy queuePolicy = OutboundQueue.Policy.DEFAULT;
+    // Write coalescing: how long a frame may wait for company, and the most bytes per socket write
+    static long flushWindowNanos = 0;
+    static int flushBytes = 16 * 1024;
+    // Heartbeats and deadlines, enforced per connection by the idle wheel
+    static long pingIntervalNanos = TimeUnit.SECONDS.toNanos(30);
+    static long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(90);
+    static long writeTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+    // Null when idle connections are never reaped
+    private static TimingWheel idleWheel;
+    // Admission control for the accept loop (its thread only); 0 / null when unlimited
+    static double maxAcceptsPerSecond = 1000;
+    private static TokenBucket acceptLimit;
 
+    /**
+     * Usage: {@code ChatServer [--mode=blocking|virtual|nio] [--reactors=N] [--carriers=N] [--stats=SECONDS]
+     *                   [--queue=N] [--overflow=drop-oldest|drop-ephemeral|disconnect] [--max-lag-ms=N]
+     *                   [--flush-window-us=N] [--flush-bytes=N] [--typing-interval-ms=N]
+     *                   [--reaction-interval-ms=N] [--ping-interval-ms=N] [--idle-timeout-ms=N] [--write-timeout-ms=N]
+     *                   [--rate-limits=COMMAND:PER_SECOND[/BURST],...] [--max-accepts-per-second=N]
+     *                   [--port=N] [--peer-port=N] [--peer-bind=ADDRESS] [--peer-secret-file=PATH]
+     *                   [--peers=host:port,...] [--node-id=NAME] [--node-number=N]
+     *                   [--log-dir=PATH] [--segment-mb=N] [--segment-minutes=N] [--retention-hours=N]
+     *                   [--replay=N] [--metrics-port=N] [--attachment-port=N] [--spool-dir=PATH]
+     *                   [--max-attachment-mb=N] [--max-spool-mb=N]}
+     * <ul>
+     *   <li>{@code blocking} (default): one platform thread per client</li>
+     *   <li>{@code virtual}: one virtual thread per client, scheduled on {@code --carriers} carrier threads</li>
+     *   <li>{@code nio}: N selector threads (default: one per core), each owning a shard of connections</li>
+     * </ul>
+     * {@code --stats} prints clients, platform threads, heap use, outbound queue depth/drops and
+     * write coalescing stats at the given interval.
+     * {@code --queue}, {@code --overflow} and {@code --max-lag-ms} configure each client's outbound queue
+     * (see {@link OutboundQueue.Overflow}).
+     * Writers gather queued frames into one socket write until the oldest is {@code --flush-window-us}
+     * old (default 0: write as soon as the queue runs empty) or {@code --flush-bytes} are pending.
+     * {@code --typing-interval-ms} is how often typing digests are sent (default 500),
+     * {@code --reaction-interval-ms} how often reaction summaries are (default 250).
+     * A logged-in binary client that has sent nothing for {@code --ping-interval-ms} (default 30000) is
+     * sent a {@code PING}; one that stays silent for {@code --idle-timeout-ms} (default 90000), or whose
+     * socket write makes no progress for {@code --write-timeout-ms} (default 30000), is disconnected.
+     * Line-protocol clients can't answer a {@code PING}, so once logged in they are only held to the
+     * write timeout; the idle timeout still applies to a connection that never sends a nickname.
+     * {@code --idle-timeout-ms=0} turns heartbeats and both timeouts off.
+     * {@code --rate-limits} overrides the per-connection {@link RateLimit}s ({@code any}, {@code chat},
+     * {@code whisper}, {@code react}, {@code typing}; a rate of 0 is unlimited). Commands over a limit are
+     * dropped and the client is told {@code THROTTLED}. {@code --max-accepts-per-second} (default 1000,
+     * 0 for no limit) paces the accept loop; connections beyond it wait in the listen backlog.
+     * {@code --port} is the client port (default 5555). With {@code --peer-port} the node joins a
+     * cluster: it listens there for peers and links to every {@code --peers} address (see {@link Cluster}),
+     * so several nodes can run side by side on one box; give each a different {@code --node-number}
+     * (0-32767) so their message IDs don't collide. The peer port listens on {@code --peer-bind}
+     * (default loopback), and only nodes holding the secret in {@code --peer-secret-file}, which every
+     * node needs, are linked to.
+     * Chat and whisper messages are appended to a {@link MessageLog} in {@code --log-dir} (default
+     * {@code chatlog}); segments roll at {@code --segment-mb} (64) or {@code --segment-minutes} (60)
+     * and are deleted after {@code --retention-hours} (168).
+     * The last {@code --replay} messages per room (default 256, at most half the queue) are kept in
+     * memory for clients resuming after a reconnect; older gaps are read back from the log.
+     * {@link Metrics} are always published over JMX; {@code --metrics-port} also serves them in
+     * Prometheus text format on the loopback interface.
+     * With {@code --attachment-port} clients can attach files of up to {@code --max-attachment-mb} (100)
+     * to room messages; they are spooled in {@code --spool-dir} (default {@code attachments}), served
+     * from that port (see {@link AttachmentServer}) and expire with the log. Uploads are refused while
+     * the spool would grow past {@code --max-spool-mb} (10240).
+     */
     public static void main(String[] args) throws IOException {
-        ServerSocket serverSocket = new ServerSocket(PORT);
-        System.out.println("Chat server running on port " + PORT);
+        String mode = "blocking";
+        int reactors = Runtime.getRuntime().availableProcessors();
+        int statsSeconds = 0;
+        int queueCapacity = queuePolicy.capacity();
+        OutboundQueue.Overflow overflow = queuePolicy.overflow();
+        long maxLagMillis = queuePolicy.maxLagMillis();
+        long typingIntervalMillis = 500;
+        long reactionIntervalMillis = 250;
+        int peerPort = 0;
+        InetAddress peerBind = InetAddress.getLoopbackAddress();
+        String peerSecretFile = null;
+        List<String> peers = List.of();
+        String nodeId = null;
+        int nodeNumber = 0;
+        String logDir = "chatlog";
+        long segmentMb = 64, segmentMinutes = 60, retentionHours = 168;
+        int replayCapacity = 256;
+        int metricsPort = 0;
+        int attachmentPort = 0;
+        String spoolDir = "attachments";
+        long maxAttachmentMb = 100;
+        long maxSpoolMb = 10240;
+        long pingIntervalMillis = TimeUnit.NANOSECONDS.toMillis(pingIntervalNanos);
+        long idleTimeoutMillis = TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos);
+        long writeTimeoutMillis = TimeUnit.NANOSECONDS.toMillis(writeTimeoutNanos);
+        for (String arg : args) {
+            if (arg.startsWith("--mode=")) mode = arg.substring("--mode=".length());
+            else if (arg.startsWith("--reactors=")) reactors = Integer.parseInt(arg.substring("--reactors=".length()));
+            // Must be set before the first virtual thread starts the scheduler
+            else if (arg.startsWith("--carriers=")) System.setProperty("jdk.virtualThreadScheduler.parallelism", arg.substring("--carriers=".length()));
+            else if (arg.startsWith("--stats=")) statsSeconds = Integer.parseInt(arg.substring("--stats=".length()));
+            else if (arg.startsWith("--queue=")) queueCapacity = Integer.parseInt(arg.substring("--queue=".length()));
+            else if (arg.startsWith("--overflow=")) overflow = OutboundQueue.Overflow.valueOf(
+                    arg.substring("--overflow=".length()).toUpperCase(Locale.ROOT).replace('-', '_'));
+            else if (arg.startsWith("--max-lag-ms=")) maxLagMillis = Long.parseLong(arg.substring("--max-lag-ms=".length()));
+            else if (arg.startsWith("--flush-window-us=")) flushWindowNanos = TimeUnit.MICROSECONDS.toNanos(
+                    Long.parseLong(arg.substring("--flush-window-us=".length())));
+            else if (arg.startsWith("--flush-bytes=")) flushBytes = Integer.parseInt(arg.substring("--flush-bytes=".length()));
+            else if (arg.startsWith("--typing-interval-ms=")) typingIntervalMillis = Long.parseLong(arg.substring("--typing-interval-ms=".length()));
+            else if (arg.startsWith("--reaction-interval-ms=")) reactionIntervalMillis = Long.parseLong(arg.substring("--reaction-interval-ms=".length()));
+            else if (arg.startsWith("--ping-interval-ms=")) pingIntervalMillis = Long.parseLong(arg.substring("--ping-interval-ms=".length()));
+            else if (arg.startsWith("--idle-timeout-ms=")) idleTimeoutMillis = Long.parseLong(arg.substring("--idle-timeout-ms=".length()));
+            else if (arg.startsWith("--write-timeout-ms=")) writeTimeoutMillis = Long.parseLong(arg.substring("--write-timeout-ms=".length()));
+            else if (arg.startsWith("--rate-limits=")) RateLimit.configure(arg.substring("--rate-limits=".length()));
+            else if (arg.startsWith("--max-accepts-per-second=")) maxAcceptsPerSecond = Double.parseDouble(arg.substring("--max-accepts-per-second=".length()));
+            else if (arg.startsWith("--port=")) port = Integer.parseInt(arg.substring("--port=".length()));
+            else if (arg.startsWith("--peer-port=")) peerPort = Integer.parseInt(arg.substring("--peer-port=".length()));
+            else if (arg.startsWith("--peer-bind=")) peerBind = InetAddress.getByName(arg.substring("--peer-bind=".length()));
+            else if (arg.startsWith("--peer-secret-file=")) peerSecretFile = arg.substring("--peer-secret-file=".length());
+            else if (arg.startsWith("--peers=")) peers = List.of(arg.substring("--peers=".length()).split(","));
+            else if (arg.startsWith("--node-id=")) nodeId = arg.substring("--node-id=".length());
+            else if (arg.startsWith("--node-number=")) nodeNumber = Integer.parseInt(arg.substring("--node-number=".length()));
+            else if (arg.startsWith("--log-dir=")) logDir = arg.substring("--log-dir=".length());
+            else if (arg.startsWith("--segment-mb=")) segmentMb = Long.parseLong(arg.substring("--segment-mb=".length()));
+            else if (arg.startsWith("--segment-minutes=")) segmentMinutes = Long.parseLong(arg.substring("--segment-minutes=".length()));
+            else if (arg.startsWith("--retention-hours=")) retentionHours = Long.parseLong(arg.substring("--retention-hours=".length()));
+            else if (arg.startsWith("--replay=")) replayCapacity = Integer.parseInt(arg.substring("--replay=".length()));
+            else if (arg.startsWith("--metrics-port=")) metricsPort = Integer.parseInt(arg.substring("--metrics-port=".length()));
+            else if (arg.startsWith("--attachment-port=")) attachmentPort = Integer.parseInt(arg.substring("--attachment-port=".length()));
+            else if (arg.startsWith("--spool-dir=")) spoolDir = arg.substring("--spool-dir=".length());
+            else if (arg.startsWith("--max-attachment-mb=")) maxAttachmentMb = Long.parseLong(arg.substring("--max-attachment-mb=".length()));
+            else if (arg.startsWith("--max-spool-mb=")) maxSpoolMb = Long.parseLong(arg.substring("--max-spool-mb=".length()));
+            else throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+        queuePolicy = new OutboundQueue.Policy(queueCapacity, overflow, maxLagMillis);
+        if (nodeNumber < 0 || nodeNumber >= 1 << (63 - MessageLog.NODE_SHIFT)) {
+            throw new IllegalArgumentException("--node-number out of range: " + nodeNumber);
+        }
+        if (idleTimeoutMillis > 0 && (pingIntervalMillis <= 0 || pingIntervalMillis >= idleTimeoutMillis || writeTimeoutMillis <= 0)) {
+            throw new IllegalArgumentException("--ping-interval-ms must be below --idle-timeout-ms, and both timeouts positive");
+        }
+        // A replay must fit in the client's queue next to live traffic; the log covers larger gaps
+        init(new MessageLog(Paths.get(logDir), segmentMb << 20, TimeUnit.MINUTES.toMillis(segmentMinutes),
+                        TimeUnit.HOURS.toMillis(retentionHours), nodeNumber),
+                Math.max(1, Math.min(replayCapacity, queueCapacity / 2)));
+
+        if (maxAcceptsPerSecond > 0) {
+            acceptLimit = new TokenBucket(maxAcceptsPerSecond, Math.max(1, maxAcceptsPerSecond), System.nanoTime());
+        }
+
+        if (statsSeconds > 0) startStats(statsSeconds);
+        Metrics.start(clients, metricsPort);
+        typing.start(typingIntervalMillis);
+        reactions.start(reactionIntervalMillis);
+        if (idleTimeoutMillis > 0) {
+            pingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(pingIntervalMillis);
+            idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+            writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+            // Deadlines are seconds apart, so 100 ms ticks are plenty; 512 of them cover the usual intervals in one turn
+            idleWheel = new TimingWheel(100, 512);
+            idleWheel.start("idle-wheel");
+        }
+        if (attachmentPort > 0) {
+            attachments.start(attachmentPort, Paths.get(spoolDir), maxAttachmentMb << 20, maxSpoolMb << 20,
+                    TimeUnit.HOURS.toMillis(retentionHours));
+        }
+        if (peerPort > 0) {
+            if (peerSecretFile == null) throw new IllegalArgumentException("--peer-port needs --peer-secret-file");
+            byte[] secret = Files.readString(Paths.get(peerSecretFile)).strip().getBytes(StandardCharsets.UTF_8);
+            if (secret.length == 0) throw new IllegalArgumentException("Empty cluster secret in " + peerSecretFile);
+            cluster.start(nodeId != null ? nodeId : "node-" + peerPort, peerBind, peerPort, peers, secret);
+        }
+
+        switch (mode) {
+            case "blocking" -> runBlocking(Thread.ofPlatform().name("client-", 0), mode);
+            case "virtual"  -> runBlocking(Thread.ofVirtual().name("client-", 0), mode);
+            case "nio"      -> new NioServer(port, reactors).run();
+            default         -> throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+    }
+
+    /** Install the message log and replay buffer; done by main, or directly by code driving the core in-process. */
+    static void init(MessageLog messageLog, int replayCapacity) {
+        log = messageLog;
+        replay = new ReplayBuffer(replayCapacity);
+        timers.scheduleAtFixedRate(() -> {
+            replay.evictIf(ChatServer::isIdle);
+            reactions.evictIf(ChatServer::isIdle);
+        }, IDLE_SWEEP_MILLIS, IDLE_SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Whether {@code key} is a room nobody here is in, or an {@code @nickname} of a user who left and didn't come back. */
+    private static boolean isIdle(String key) {
+        if (key.startsWith("@")) {
+            String nick = key.substring(1);
+            return presence.lookup(nick) == null && !leaving.containsKey(nick);
+        }
+        return !Rooms.LOBBY.equals(key) && rooms.members(key).length == 0;
+    }
+
+    private static void runBlocking(Thread.Builder threads, String mode) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        System.out.println("Chat server running on port " + port + " (" + mode + ")");
 
         while (true) {
+            paceAccepts();
             Socket clientSock = serverSocket.accept();
             ClientHandler handler = new ClientHandler(clientSock);
-            clients.add(handler);
-            new Thread(handler).start();
+            register(handler);
+            threads.start(handler::writeLoop);
+            threads.start(handler);
+        }
+    }
+
+    /** Periodic one-line footprint report, used to compare the execution modes. */
+    private static void startStats(int seconds) {
+        ScheduledExecutorService stats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stats");
+            t.setDaemon(true);
+            return t;
+        });
+        stats.scheduleAtFixedRate(() -> {
+            Runtime rt = Runtime.getRuntime();
+            long usedMb = (rt.totalMemory() - rt.freeMemory()) >> 20;
+            int queued = 0, maxDepth = 0;
+            for (Connection c : clients) {
+                int depth = c.outbound.size();
+                queued += depth;
+                maxDepth = Math.max(maxDepth, depth);
+            }
+            System.out.println("clients=" + clients.size()
+                    + " rooms=" + rooms.count()
+                    + " peers=" + cluster.peers()
+                    + " platformThreads=" + ManagementFactory.getThreadMXBean().getThreadCount()
+                    + " heapUsedMb=" + usedMb
+                    + " queued=" + queued
+                    + " maxQueueDepth=" + maxDepth
+                    + " queueDrops=" + OutboundQueue.TOTAL_DROPS.sum()
+                    + " " + FlushStats.summary());
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Called by the accept loop before each accept: waits while accepts run
+     * over the limit, so a connection storm queues in the listen backlog
+     * instead of flooding the server with logins.
+     */
+    static void paceAccepts() {
+        if (acceptLimit == null) return;
+        if (acceptLimit.tryTake(System.nanoTime())) return;
+        Metrics.ACCEPTS_DELAYED.increment();
+        do {
+            LockSupport.parkNanos(acceptLimit.nanosUntilToken(System.nanoTime()));
+        } while (!acceptLimit.tryTake(System.nanoTime()));
+    }
+
+    static void register(Connection c) {
+        clients.add(c);
+        Metrics.ACCEPTS.increment();
+        if (idleWheel != null) {
+            idleWheel.schedule(c::checkDeadlines, System.nanoTime() + Math.min(pingIntervalNanos, writeTimeoutNanos));
+        }
+    }
+
+    /** Queue one frame to the members of {@code room} on every node of the cluster. */
+    static void publish(String room, Frame frame) {
+        deliver(room, frame);
+        cluster.relay(room, frame);
+    }
+
+    /**
+     * Post {@code nick}'s completed upload {@code fileId} in {@code room}, as a logged message of its own.
+     * @return false, posting nothing, if {@code nick} is no longer in {@code room}
+     */
+    static boolean postAttachment(String room, String nick, String name, long size, String fileId, int port) {
+        if (!isMember(nick, room)) return false;
+        publish(room, log.append(room, id -> Frame.attachment(room, id, nick, name, size, fileId, port)));
+        return true;
+    }
+
+    /** Whether {@code nick} is logged in on this node and in {@code room}. */
+    static boolean isMember(String nick, String room) {
+        Connection c = presence.lookup(nick);
+        return c != null && (Rooms.LOBBY.equals(room) || c.rooms.contains(room));
+    }
+
+    /**
+     * Queue one frame to this node's members of {@code room}; never waits on a
+     * recipient's socket. Logged frames are also kept for replay, unless the
+     * room has no members here to resume it.
+     */
+    static void deliver(String room, Frame frame) {
+        if (frame.id() == 0 || !Rooms.LOBBY.equals(room) && rooms.members(room).length == 0) {
+            fanOut(room, frame);
+            return;
+        }
+        ReplayBuffer.Ring ring = replay.ring(room);
+        ring.lock.lock();
+        try {
+            replay.record(ring, frame);
+            fanOut(room, frame);
+        } finally {
+            ring.lock.unlock();
+        }
+    }
+
+    private static void fanOut(String room, Frame frame) {
+        long start = System.nanoTime();
+        int binaryClients = 0, textClients = 0;
+        if (Rooms.LOBBY.equals(room)) {
+            for (Connection c : presence.connections()) {
+                c.send(frame);
+                if (c.binary) binaryClients++;
+                else textClients++;
+            }
+        } else {
+            for (Connection c : rooms.members(room)) {
+                c.send(frame);
+                if (c.binary) binaryClients++;
+                else textClients++;
+            }
+        }
+        Metrics.broadcast(frame, binaryClients, textClients, start);
+    }
+
+    /**
+     * Handle the first line of a connection: the nickname, optionally prefixed
+     * with {@link Wire#HELLO} to switch this client to the binary protocol,
+     * or with {@link Wire#TEXT_IDS} to get message IDs in the line protocol.
+     * The nickname is claimed and the join announced. The new client gets
+     * the full user list once, plus the lobby's reaction counts; everyone else
+     * gets a {@code USER_JOIN} delta.
+     * A binary client is given a resume token with {@code LOGIN_OK}. Quoting
+     * it in a later hello takes over the session it was issued to, if that is
+     * still connected here: a client back from a dropped connection isn't
+     * refused its own nickname before the server notices the old one died.
+     * A malformed nickname (see {@link #nickProblem}) is refused with
+     * {@code NICK_INVALID}, a taken one with {@code NICK_TAKEN}; either way
+     * the connection is closed once that is delivered.
+     * @return false if the nickname was refused
+     */
+    static boolean login(Connection c, String firstLine) {
+        String nickname = firstLine;
+        String token = null;
+        if (firstLine.startsWith(Wire.HELLO + " ")) {
+            nickname = firstLine.substring(Wire.HELLO.length() + 1);
+            // Nicknames have no spaces, so anything after one is a resume token
+            int sp = nickname.indexOf(' ');
+            if (sp >= 0) {
+                token = nickname.substring(sp + 1);
+                nickname = nickname.substring(0, sp);
+            }
+            c.send(Frame.helloOk());
+            c.binary = true;
+        } else if (firstLine.startsWith(Wire.TEXT_IDS + " ")) {
+            nickname = firstLine.substring(Wire.TEXT_IDS.length() + 1);
+            c.textIds = true;
+        }
+        String problem = nickProblem(nickname);
+        if (problem != null) {
+            c.send(Frame.nickInvalid(problem));
+            c.closeAfterFlush();
+            return false;
+        }
+        Connection stale = token == null ? null : presence.lookup(nickname);
+        boolean tookOver = stale != null && ownsToken(stale, token) && presence.takeOver(nickname, stale, c);
+        if (!tookOver && !presence.join(nickname, c)) {
+            c.send(Frame.nickTaken(nickname));
+            c.closeAfterFlush();
+            return false;
+        }
+        c.nickname = nickname;
+        if (tookOver) stale.close();
+        if (c.binary) {
+            byte[] bytes = new byte[16];
+            TOKENS.nextBytes(bytes);
+            c.resumeToken = HexFormat.of().formatHex(bytes);
+            c.send(Frame.loginOk(c.resumeToken));
+        }
+        reactions.snapshot(Rooms.LOBBY, c);
+        // Back within the grace window, or never gone: nobody was told they left, so don't say they joined
+        if (!tookOver && leaving.remove(nickname) == null) {
+            publish(Rooms.LOBBY, Frame.notice("** " + nickname + " joined the chat **"));
+        }
+        return true;
+    }
+
+    private static boolean ownsToken(Connection c, String token) {
+        String issued = c.resumeToken;
+        return issued != null && MessageDigest.isEqual(issued.getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Why {@code nick} can't be used, or null if it can. Nicknames travel in
+     * comma-separated user lists and space-separated text lines, and name
+     * whisper chats next to "#room" keys, so separators, whitespace, control
+     * characters and a leading '#' or '@' are all refused.
+     */
+    static String nickProblem(String nick) {
+        if (nick.isEmpty()) return "empty";
+        if (nick.length() > MAX_NICK_LENGTH) return "longer than " + MAX_NICK_LENGTH + " characters";
+        if (nick.charAt(0) == '#' || nick.charAt(0) == '@') return "starts with '" + nick.charAt(0) + "'";
+        for (int i = 0; i < nick.length(); i++) {
+            char ch = nick.charAt(i);
+            if (Character.isWhitespace(ch) || Character.isSpaceChar(ch) || Character.isISOControl(ch)
+                    || Character.getType(ch) == Character.FORMAT) return "contains spaces or control characters";
+            if (ch == ',' || ch == ':') return "contains '" + ch + "'";
+        }
+        return null;
+    }
+
+    /** Dispatch one line received from a logged-in line-protocol client. */
+    static void handleLine(Connection c, String line) {
+        if (admit(c, RateLimit.ANY)) {
+            dispatchLine(c, line);
+        } else if (line.startsWith("/resume ")) {
+            String[] parts = line.split(" ", 3);
+            if (parts.length == 3) refuseResume(c, parts[1]);
+        }
+    }
+
+    private static void dispatchLine(Connection c, String line) {
+        // --- Heartbeat reply: receiving it was all that mattered ---
+        if (line.equals("/pong")) return;
+
+        // --- Typing indicator ---
+        if (line.equals("/typing")) {
+            onTyping(c, Rooms.LOBBY);
+            return;
+        }
+        if (line.startsWith("/typing ")) {
+            onTyping(c, line.substring(8).trim());
+            return;
+        }
+
+        // --- Rooms ---
+        if (line.startsWith("/join ")) {
+            onJoin(c, line.substring(6).trim());
+            return;
+        }
+        if (line.startsWith("/part ")) {
+            onPart(c, line.substring(6).trim());
+            return;
+        }
+        if (line.startsWith("/say ")) {
+            String[] parts = line.split(" ", 3);
+            if (parts.length == 3) {
+                onSay(c, parts[1], parts[2]);
+            }
+            return;
+        }
+
+        // --- Attach a file: /upload <room> <tag> <size> <name> ---
+        if (line.startsWith("/upload ")) {
+            String[] parts = line.split(" ", 5);
+            if (parts.length == 5) {
+                try {
+                    onUpload(c, parts[1], parts[4], Long.parseLong(parts[3]), Long.parseLong(parts[2]));
+                } catch (NumberFormatException ignored) {}
+            }
+            return;
+        }
+
+        // --- Add Friend ---
+        if (line.startsWith("/addfriend ")) {
+            onAddFriend(c, line.substring(11).trim());
+            return;
+        }
+
+        // --- Clear History ---
+        if (line.equals("/clear")) {
+            onClear(c);
+            return;
+        }
+
+        // --- Catch up after a reconnect ---
+        if (line.startsWith("/resume ")) {
+            String[] parts = line.split(" ", 3);
+            if (parts.length == 3) {
+                try {
+                    onResume(c, parts[1], Long.parseLong(parts[2]));
+                } catch (NumberFormatException ignored) {}
+            }
+            return;
+        }
+
+        // --- Whisper ---
+        if (line.startsWith("/w ")) {
+            String[] parts = line.split(" ", 3);
+            if (parts.length == 3) {
+                onWhisper(c, parts[1], parts[2]);
+            }
+            return;
+        }
+
+        // --- React to a message: /react <index> <emoji> in the lobby, /react <room> <index> <emoji> elsewhere ---
+        if (line.startsWith("/react ")) {
+            String[] parts = line.split(" ", 4);
+            // Room names start with a letter, so a numeric second word means the lobby form
+            boolean lobby = !parts[1].isEmpty() && Character.isDigit(parts[1].charAt(0));
+            if (lobby) parts = line.split(" ", 3);
+            if (parts.length == (lobby ? 3 : 4)) {
+                try {
+                    if (lobby) onReact(c, Rooms.LOBBY, Long.parseLong(parts[1]), parts[2]);
+                    else onReact(c, parts[1], Long.parseLong(parts[2]), parts[3]);
+                } catch (NumberFormatException ignored) {}
+            }
+            return;
+        }
+
+        // --- Normal chat line goes to the lobby ---
+        onSay(c, Rooms.LOBBY, line);
+    }
+
+    /** Decodes one binary frame body; a table entry per client opcode. */
+    private interface FrameHandler {
+        void handle(Connection c, WireReader in);
+    }
+
+    private static final FrameHandler[] FRAME_HANDLERS = new FrameHandler[Op.TABLE_SIZE];
+    static {
+        FRAME_HANDLERS[Op.SAY]        = (c, in) -> onSay(c, in.string(), in.string());
+        FRAME_HANDLERS[Op.WHISPER]    = (c, in) -> onWhisper(c, in.string(), in.string());
+        FRAME_HANDLERS[Op.TYPING]     = (c, in) -> onTyping(c, in.string());
+        FRAME_HANDLERS[Op.REACT]      = (c, in) -> onReact(c, in.string(), in.varint(), in.string());
+        FRAME_HANDLERS[Op.ADD_FRIEND] = (c, in) -> onAddFriend(c, in.string());
+        FRAME_HANDLERS[Op.CLEAR]      = (c, in) -> onClear(c);
+        FRAME_HANDLERS[Op.COMMAND]    = (c, in) -> dispatchLine(c, in.string());
+        FRAME_HANDLERS[Op.JOIN]       = (c, in) -> onJoin(c, in.string());
+        FRAME_HANDLERS[Op.PART]       = (c, in) -> onPart(c, in.string());
+        FRAME_HANDLERS[Op.RESUME]     = (c, in) -> onResume(c, in.string(), in.varint());
+        FRAME_HANDLERS[Op.PONG]       = (c, in) -> { };
+        FRAME_HANDLERS[Op.UPLOAD]     = (c, in) -> onUpload(c, in.string(), in.string(), in.varint(), in.varint());
+    }
+
+    /** Dispatch one frame received from a logged-in binary-protocol client. Unknown opcodes are ignored. */
+    static void handleFrame(Connection c, byte[] body) {
+        WireReader in = new WireReader(body);
+        try {
+            int op = in.op();
+            FrameHandler h = op < FRAME_HANDLERS.length ? FRAME_HANDLERS[op] : null;
+            if (h == null) return;
+            if (admit(c, RateLimit.ANY)) h.handle(c, in);
+            else if (op == Op.RESUME) refuseResume(c, in.string());
+        } catch (IllegalArgumentException e) {
+            // Malformed frame: the stream can't be trusted any more
+            c.close();
+        }
+    }
+
+    /**
+     * Take a token from {@code c}'s bucket for {@code limit}. The first
+     * refused command gets a {@code THROTTLED} reply; later ones are dropped
+     * silently until the client has let the bucket fill up again, so a flood
+     * isn't echoed back. Reader thread only.
+     */
+    private static boolean admit(Connection c, RateLimit limit) {
+        if (limit.perSecond <= 0) return true;
+        int i = limit.ordinal();
+        long now = System.nanoTime();
+        TokenBucket bucket = c.buckets[i];
+        if (bucket == null) bucket = c.buckets[i] = limit.newBucket(now);
+        if ((c.throttled & 1 << i) != 0 && bucket.isFull(now)) c.throttled &= ~(1 << i);
+        if (bucket.tryTake(now)) return true;
+        limit.throttled.increment();
+        if ((c.throttled & 1 << i) == 0) {
+            c.throttled |= 1 << i;
+            c.send(Frame.throttled(limit.label, TimeUnit.NANOSECONDS.toMillis(bucket.nanosUntilToken(now)) + 1));
+        }
+        return false;
+    }
+
+    /** Whether {@code c} may speak in {@code room}; tells the client off if not. */
+    private static boolean checkMember(Connection c, String room) {
+        if (Rooms.LOBBY.equals(room) || c.rooms.contains(room)) return true;
+        c.send(Frame.notice("(SYSTEM) You are not in room '" + room + "'."));
+        return false;
+    }
+
+    private static void onSay(Connection c, String room, String text) {
+        Metrics.Command.CHAT.count.increment();
+        if (!admit(c, RateLimit.CHAT) || !checkMember(c, room)) return;
+        stoppedTyping(room, c.nickname);
+        publish(room, log.append(room, id -> Frame.chat(room, id, c.nickname, text)));
+    }
+
+    private static void onTyping(Connection c, String room) {
+        Metrics.Command.TYPING.count.increment();
+        if (!admit(c, RateLimit.TYPING)) return;
+        // Folded into the next TYPING_SET digest for that room
+        if (!Rooms.LOBBY.equals(room) && !c.rooms.contains(room)) return;
+        if (typing.typing(room, c.nickname)) cluster.typing(room, c.nickname);
+    }
+
+    private static void stoppedTyping(String room, String nick) {
+        if (typing.stopped(room, nick)) cluster.stopped(room, nick);
+    }
+
+    private static void onJoin(Connection c, String room) {
+        Metrics.Command.JOIN.count.increment();
+        if (Rooms.LOBBY.equals(room)) return;
+        if (!Rooms.isValidName(room)) {
+            c.send(Frame.notice("(SYSTEM) Invalid room name '" + room + "'."));
+            return;
+        }
+        rooms.join(room, c);
+        c.send(Frame.roomJoined(room));
+        reactions.snapshot(room, c);
+    }
+
+    private static void onPart(Connection c, String room) {
+        Metrics.Command.PART.count.increment();
+        // Everyone stays in the lobby
+        if (!rooms.part(room, c)) return;
+        stoppedTyping(room, c.nickname);
+        c.send(Frame.roomParted(room));
+    }
+
+    private static void onAddFriend(Connection c, String friend) {
+        Metrics.Command.ADD_FRIEND.count.increment();
+        if (presence.isOnline(friend)) {
+            c.send(Frame.friendAdded(friend));
+        } else {
+            c.send(Frame.notice("(SYSTEM) User '" + friend + "' not found"));
+        }
+    }
+
+    /** Grant an upload; its reference is posted to {@code room} once the file has arrived. */
+    private static void onUpload(Connection c, String room, String name, long size, long tag) {
+        Metrics.Command.UPLOAD.count.increment();
+        // The upload ends in a chat message, so it counts against the chat limit
+        if (!admit(c, RateLimit.CHAT) || !checkMember(c, room)) return;
+        if (!attachments.enabled()) {
+            c.send(Frame.notice("(SYSTEM) Attachments are not enabled on this server."));
+        } else if (!AttachmentServer.isValidName(name)) {
+            c.send(Frame.notice("(SYSTEM) Invalid file name '" + name + "'."));
+        } else if (size < 0 || size > attachments.maxBytes()) {
+            c.send(Frame.notice("(SYSTEM) '" + name + "' is larger than the " + (attachments.maxBytes() >> 20) + " MB limit."));
+        } else {
+            String[] idKey = attachments.grant(room, c.nickname, name, size);
+            if (idKey == null) {
+                c.send(Frame.notice("(SYSTEM) Attachment storage is full; try again later."));
+            } else {
+                c.send(Frame.uploadReady(tag, idKey[0], idKey[1], attachments.port()));
+            }
+        }
+    }
+
+    private static void onClear(Connection c) {
+        Metrics.Command.CLEAR.count.increment();
+        c.send(Frame.clearHistory());
+    }
+
+    private static void onReact(Connection c, String room, long id, String emoji) {
+        Metrics.Command.REACT.count.increment();
+        if (!admit(c, RateLimit.REACT) || !checkMember(c, room)) return;
+        if (!isValidEmoji(emoji)) {
+            c.send(Frame.notice("(SYSTEM) Invalid reaction '" + emoji + "'."));
+            return;
+        }
+        // Messages published by other nodes are only in their logs; ours may have to be read from disk
+        if (log.isLocal(id)) {
+            logReaders.execute(() -> {
+                byte[] wire = log.read(id);
+                Frame target = wire == null ? null : Frame.fromWire(wire);
+                if (target == null || (target.op != Op.CHAT && target.op != Op.ATTACHMENT) || !room.equals(target.room())) {
+                    c.send(Frame.notice("(SYSTEM) No message " + id + " in this room."));
+                } else {
+                    react(c, room, id, emoji);
+                }
+            });
+        } else {
+            react(c, room, id, emoji);
+        }
+    }
+
+    private static void react(Connection c, String room, long id, String emoji) {
+        // Folded into the next REACTION_SUMMARY for that message
+        switch (reactions.react(room, id, emoji, c.nickname)) {
+            case ADDED -> cluster.react(room, id, emoji, c.nickname);
+            case FULL -> c.send(Frame.notice("(SYSTEM) Message " + id + " already has "
+                    + ReactionTracker.EMOJIS_PER_MESSAGE + " different reactions."));
+            case REPEATED -> { }
+        }
+    }
+
+    /** Short, and free of control characters and the separators the text form of a summary uses. */
+    private static boolean isValidEmoji(String emoji) {
+        if (emoji.isEmpty() || emoji.length() > 16) return false;
+        for (int i = 0; i < emoji.length(); i++) {
+            char ch = emoji.charAt(i);
+            if (Character.isWhitespace(ch) || Character.isISOControl(ch) || ch == ',' || ch == ':') return false;
+        }
+        return true;
+    }
+
+    /** Send a private (whisper) message, forwarding it if the target is on another node */
+    private static void onWhisper(Connection from, String targetNick, String msg) {
+        Metrics.Command.WHISPER.count.increment();
+        if (!admit(from, RateLimit.WHISPER)) return;
+        Connection c = presence.lookup(targetNick);
+        String node = c == null ? presence.nodeOf(targetNick) : null;
+        if (c == null && node == null) {
+            from.send(Frame.notice("(SYSTEM) User '" + targetNick + "' not found."));
+            return;
+        }
+        Frame whisper = log.append("@" + targetNick, id -> Frame.whisperFrom(id, from.nickname, msg));
+        // to recipient
+        if (c != null) deliverWhisper(targetNick, whisper);
+        else if (!cluster.whisper(node, targetNick, whisper)) {
+            from.send(Frame.notice("(SYSTEM) User '" + targetNick + "' not found."));
+            return;
         }
+        // echo back to sender
+        from.send(Frame.whisperTo(whisper.id(), targetNick, msg.trim()));
     }
 
-    /** Broadcast a message to everyone */
-    static void broadcast(String msg) {
-        for (ClientHandler c : clients) {
-            c.send(msg);
+    /** Deliver a whisper to a local user (possibly forwarded by another node), keeping it for replay. */
+    static void deliverWhisper(String targetNick, Frame whisper) {
+        ReplayBuffer.Ring ring = replay.ring("@" + targetNick);
+        ring.lock.lock();
+        try {
+            replay.record(ring, whisper);
+            Connection c = presence.lookup(targetNick);
+            if (c != null) c.send(whisper);
+        } finally {
+            ring.lock.unlock();
         }
     }
 
-    /** Send the current user-list to everyone */
-    static void broadcastUserList() {
-        String csv = String.join(",", userNames);
-        for (ClientHandler c : clients) {
-            c.send("USER_LIST " + csv);
+    /**
+     * Send {@code c} what it missed in a room (or, for key {@code "@"}, its
+     * whispers) after message {@code afterId}, between REPLAY_BEGIN and
+     * REPLAY_END. Recent gaps come from the replay buffer, older ones from the
+     * log; what neither has any more is reported as a notice. The log is read
+     * on a log-reader thread without the ring's lock, so neither the
+     * connection's reader nor publishers to the room wait on the disk.
+     * Every RESUME is answered, a refused or throttled one with an empty replay.
+     */
+    private static void onResume(Connection c, String key, long afterId) {
+        Metrics.Command.RESUME.count.increment();
+        String ringKey = "@".equals(key) ? "@" + c.nickname : key;
+        if (!"@".equals(key) && !checkMember(c, key)) {
+            refuseResume(c, key);
+            return;
         }
+        ReplayBuffer.Ring ring = replay.ring(ringKey);
+        long mark;
+        ring.lock.lock();
+        try {
+            List<Frame> missed = replay.after(ring, afterId);
+            if (missed != null) {
+                sendReplay(c, key, missed, true);
+                return;
+            }
+            mark = replay.mark(ring);
+        } finally {
+            ring.lock.unlock();
+        }
+        logReaders.execute(() -> resumeFromLog(c, key, ringKey, afterId, ring, mark));
+    }
+
+    /** Finish a resume the ring couldn't serve: read the log, then add what the ring got since {@code mark}. */
+    private static void resumeFromLog(Connection c, String key, String ringKey, long afterId, ReplayBuffer.Ring ring, long mark) {
+        // At most half the queue, so a replay doesn't overflow it
+        MessageLog.Replay r = log.readAfter(ringKey, afterId, queuePolicy.capacity() / 2, MAX_REPLAY_SCAN);
+        List<Frame> missed = new ArrayList<>();
+        Set<Long> fromLog = new HashSet<>();
+        boolean complete = false;
+        if (r != null) {
+            for (byte[] wire : r.frames()) {
+                Frame f = Frame.fromWire(wire);
+                missed.add(f);
+                fromLog.add(f.id());
+            }
+            complete = r.complete();
+        }
+        ring.lock.lock();
+        try {
+            // Add what was delivered while the log was read; the log may have some of it already
+            for (Frame f : replay.since(ring, mark)) {
+                if (!fromLog.contains(f.id())) missed.add(f);
+            }
+            sendReplay(c, key, missed, complete && !replay.overrun(ring, mark));
+        } finally {
+            ring.lock.unlock();
+        }
+    }
+
+    /**
+     * Answer a RESUME that won't be served with an empty, incomplete replay:
+     * the client drops live frames for {@code key} until its replay begins.
+     */
+    private static void refuseResume(Connection c, String key) {
+        sendReplay(c, key, List.of(), false);
+    }
+
+    /** Queue a replay to {@code c}; call with the ring's lock held, so live frames follow it. */
+    private static void sendReplay(Connection c, String key, List<Frame> missed, boolean complete) {
+        c.send(Frame.replayBegin(key));
+        for (Frame f : missed) {
+            c.send(f);
+        }
+        if (!complete) {
+            c.send(Frame.notice("(SYSTEM) Some earlier messages in " + key + " are no longer available."));
+        }
+        c.send(Frame.replayEnd(key));
     }
 
-    private static class ClientHandler implements Runnable {
+    /** Cleanup on disconnect; safe to call for a client that never sent its nickname. */
+    static void logout(Connection c) {
+        c.gone = true;
+        clients.remove(c);
+        String nickname = c.nickname;
+        if (nickname == null) return;
+        presence.leave(nickname, c);
+        stoppedTyping(Rooms.LOBBY, nickname);
+        for (String room : c.rooms) {
+            rooms.part(room, c);
+            stoppedTyping(room, nickname);
+        }
+        // Taken over by the same user reconnecting: they never left
+        if (presence.lookup(nickname) != null) return;
+        // Hold the notice back in case this is a dropped connection that comes right back
+        Object marker = new Object();
+        leaving.put(nickname, marker);
+        timers.schedule(() -> {
+            if (leaving.remove(nickname, marker)) {
+                publish(Rooms.LOBBY, Frame.notice("** " + nickname + " left the chat **"));
+            }
+        }, RECONNECT_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Thread-per-client handler, run on either a platform or a virtual thread.
+     * A second thread of the same kind runs {@link #writeLoop}, the only
+     * writer of this socket; broadcasters just enqueue. The queue blocks on
+     * a {@code ReentrantLock} condition rather than a monitor, so a virtual
+     * writer waiting for frames or stuck in a socket write unmounts instead
+     * of pinning its carrier.
+     */
+    private static class ClientHandler extends Connection implements Runnable {
         private final Socket socket;
-        private final BufferedReader in;
-        private final PrintWriter out;
-        private String nickname;
+        private final InputStream in;
+        private final OutputStream out;
 
         ClientHandler(Socket socket) throws IOException {
             this.socket = socket;
-            this.in     = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.out    = new PrintWriter(socket.getOutputStream(), true);
+            this.in     = new BufferedInputStream(socket.getInputStream());
+            this.out    = socket.getOutputStream();
         }
 
         @Override
         public void run() {
             try {
-                // 1) Read and register nickname
-                nickname = in.readLine();
-                userNames.add(nickname);
-
-                // 2) Announce join & send updated user list
-                broadcast("** " + nickname + " joined the chat **");
-                broadcastUserList();
-
-                // 3) Main message loop
-                String line;
-                while ((line = in.readLine()) != null) {
-
-                    // --- Typing indicator ---
-                    if (line.equals("/typing")) {
-                        // Notify all clients that this user is typing in the global chat
-                        broadcast("TYPING " + nickname + " All");
-                        continue;
-                    }
+                // 1) Read the handshake line and register nickname
+                String first = Wire.readLine(in);
+                if (first == null) return;
+                onInput();
+                if (!login(this, first)) {
+                    // Discard input until the writer has delivered the refusal and closed the socket
+                    while (in.read() >= 0) { }
+                    return;
+                }
 
-                    // --- Add Friend ---
-                    if (line.startsWith("/addfriend ")) {
-                        String friend = line.substring(11).trim();
-                        if (userNames.contains(friend)) {
-                            out.println("(SYSTEM) Added friend: " + friend);
-                        } else {
-                            out.println("(SYSTEM) User '" + friend + "' not found");
-                        }
-                        continue;
+                // 2) Main message loop, in whichever protocol was negotiated
+                if (binary) {
+                    byte[] body;
+                    while ((body = Wire.readFrame(in)) != null) {
+                        onInput();
+                        handleFrame(this, body);
                     }
-
-                    // --- Clear History ---
-                    if (line.equals("/clear")) {
-                        out.println("CLEAR_HISTORY");
-                        continue;
+                } else {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        onInput();
+                        handleLine(this, line);
                     }
+                }
 
-                    // --- Whisper ---
-                    if (line.startsWith("/w ")) {
-                        String[] parts = line.split(" ", 3);
-                        if (parts.length == 3) {
-                            String target = parts[1], msg = parts[2];
-                            sendPrivate(target, nickname + ": " + msg);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                logout(this);
+                close();
+            }
+        }
+
+        /**
+         * Drain the outbound queue to the socket. Already-encoded frames are
+         * copied into one staging buffer and written together once the buffer
+         * fills, or once no further frame arrives before the oldest buffered
+         * one has waited the flush window.
+         */
+        void writeLoop() {
+            byte[] buf = new byte[flushBytes];
+            int len = 0;
+            long oldest = 0;    // creation time of the oldest frame in buf
+            try {
+                while (true) {
+                    Frame f;
+                    if (len == 0) {
+                        f = outbound.take();
+                        if (f == null) break;
+                    } else {
+                        f = outbound.poll(oldest + flushWindowNanos - System.nanoTime());
+                        if (f == null) {
+                            flush(buf, len, oldest);
+                            len = 0;
+                            continue;
                         }
-                        continue;
                     }
-
-                    // --- React to a message ---
-                    if (line.startsWith("/react ")) {
-                        String[] parts = line.split(" ", 3);
-                        if (parts.length == 3) {
-                            String idx   = parts[1];
-                            String emoji = parts[2];
-                            broadcast("REACTION " + idx + " " + emoji + " " + nickname);
+                    if (len == 0) oldest = f.createdNanos;
+                    for (int off = 0, n = f.length(this); off < n; ) {
+                        int chunk = Math.min(n - off, buf.length - len);
+                        f.copyTo(this, buf, len, off, chunk);
+                        len += chunk;
+                        off += chunk;
+                        if (len == buf.length) {
+                            flush(buf, len, oldest);
+                            len = 0;
+                            oldest = f.createdNanos;
                         }
-                        continue;
                     }
-
-                    // --- Broadcast normal chat line ---
-                    broadcast(nickname + ": " + line);
                 }
-
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                // Cleanup on disconnect
-                clients.remove(this);
-                userNames.remove(nickname);
-                broadcast("** " + nickname + " left the chat **");
-                broadcastUserList();
-                try { socket.close(); } catch (IOException ignored) {}
+            } catch (IOException | InterruptedException e) {
+                // fall through to close
             }
+            close();
         }
 
-        /** Send a message to this client */
-        void send(String msg) {
-            out.println(msg);
+        private void flush(byte[] buf, int len, long oldest) throws IOException {
+            // A write to a dead peer blocks once its socket buffer is full; the idle wheel ends it
+            writeStalledSince = System.nanoTime();
+            out.write(buf, 0, len);
+            writeStalledSince = 0;
+            FlushStats.record(len, oldest);
         }
 
-        /** Send a private (whisper) message */
-        private void sendPrivate(String targetNick, String msg) {
-            for (ClientHandler c : clients) {
-                if (c.nickname.equals(targetNick)) {
-                    // to recipient
-                    c.send("(whisper) " + msg);
-                    // echo back to sender
-                    this.send("(whisper to " + targetNick + ") " +
-                            msg.substring(msg.indexOf(':') + 1).trim());
-                    return;
-                }
-            }
-            out.println("(SYSTEM) User '" + targetNick + "' not found.");
+        @Override
+        void onQueued() {
+            // writeLoop is woken by the queue itself
+        }
+
+        @Override
+        void close() {
+            outbound.close();
+            try { socket.close(); } catch (IOException ignored) {}
         }
     }
 }
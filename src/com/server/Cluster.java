@@ -0,0 +1,293 @@
+package com.server;
+
+import com.protocol.Op;
+import com.protocol.Wire;
+import com.protocol.WireReader;
+import com.protocol.WireWriter;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Peer links between the server nodes of a cluster. Every node listens on
+ * its peer port and dials each of the others, so a cluster of N processes
+ * on one box needs no broker. What crosses a link:
+ * <ul>
+ *   <li>each published frame, once per node (not once per remote user); the
+ *       receiving node fans it out to its own members of the room</li>
+ *   <li>local logins and logouts, so every node holds a replicated directory
+ *       of who is online where; {@code USER_LIST} and whisper routing use it</li>
+ *   <li>typing events and reactions, so every node's {@link TypingTracker} and
+ *       {@link ReactionTracker} see the whole room</li>
+ * </ul>
+ * Two nodes accepting the same nickname at the same moment can both keep it;
+ * the directory then routes whispers to whichever claim arrived last.
+ * <p>
+ * A peer link carries other nodes' users' messages, so it is trusted with
+ * everything. Nodes prove to each other that they hold the same cluster
+ * secret before a link carries anything else: each side sends a random
+ * nonce in its {@code PEER_HELLO} and answers the other's with an HMAC of
+ * it, so the secret itself never crosses the wire. The peer port listens
+ * on loopback unless told otherwise.
+ */
+final class Cluster {
+    // Nicknames per PEER_USERS chunk, keeping a snapshot chunk well under Wire.MAX_FRAME
+    private static final int USERS_PER_CHUNK = 1000;
+    // Peer frames wrap a whole client frame, which may itself be close to Wire.MAX_FRAME
+    private static final int MAX_PEER_FRAME = 2 * Wire.MAX_FRAME;
+    private static final long REDIAL_MILLIS = 1000;
+    // A peer that hasn't proven itself by then is dropped, so strangers can't hold threads open
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+    private static final int NONCE_BYTES = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private String nodeId = "standalone";
+    private byte[] secret;
+    // Links we dialed and write on, by the peer's node id
+    private final Map<String, PeerLink> links = new ConcurrentHashMap<>();
+    // Links we accepted and read from, by the peer's node id; a reconnect replaces the entry
+    private final Map<String, Socket> inbound = new ConcurrentHashMap<>();
+
+    /**
+     * Listen for peers on {@code bind}:{@code peerPort} and keep a link to
+     * each of {@code peers} ("host:port"), accepting only nodes that share
+     * {@code secret}.
+     */
+    void start(String nodeId, InetAddress bind, int peerPort, List<String> peers, byte[] secret) throws IOException {
+        this.nodeId = nodeId;
+        this.secret = secret.clone();
+        ServerSocket server = new ServerSocket(peerPort, 50, bind);
+        System.out.println("Cluster node " + nodeId + " listening for peers on " + bind.getHostAddress() + ":" + peerPort);
+        daemon("peer-accept", () -> {
+            while (true) {
+                try {
+                    Socket s = server.accept();
+                    daemon("peer-in", () -> serve(s));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        for (String peer : peers) {
+            daemon("peer-out-" + peer, () -> dial(peer));
+        }
+    }
+
+    int peers() {
+        return links.size();
+    }
+
+    // --- Outbound: called by ChatServer and Presence for local events ---
+
+    /** Relay a frame published on this node to every other node. */
+    void relay(String room, Frame frame) {
+        if (links.isEmpty()) return;
+        sendAll(wrap(new WireWriter(Op.PEER_PUBLISH).string(room).bytes(frame.wire()).toByteArray()));
+    }
+
+    /** Called with the presence lock held, so peers see joins and leaves in order. */
+    void userJoined(String nick) {
+        if (!links.isEmpty()) sendAll(new WireWriter(Op.PEER_USER_JOIN).string(nick).toByteArray());
+    }
+
+    /** Called with the presence lock held. */
+    void userLeft(String nick) {
+        if (!links.isEmpty()) sendAll(new WireWriter(Op.PEER_USER_LEAVE).string(nick).toByteArray());
+    }
+
+    void typing(String room, String nick) {
+        if (!links.isEmpty()) sendAll(new WireWriter(Op.PEER_TYPING).string(room).string(nick).toByteArray());
+    }
+
+    void stopped(String room, String nick) {
+        if (!links.isEmpty()) sendAll(new WireWriter(Op.PEER_STOPPED).string(room).string(nick).toByteArray());
+    }
+
+    void react(String room, long id, String emoji, String nick) {
+        if (!links.isEmpty()) sendAll(new WireWriter(Op.PEER_REACT).string(room).varint(id).string(emoji).string(nick).toByteArray());
+    }
+
+    /** Forward a whisper frame to {@code node}, where its target is; false if there is no link to it or it is too large. */
+    boolean whisper(String node, String target, Frame whisper) {
+        PeerLink link = links.get(node);
+        if (link == null) return false;
+        byte[] frame = wrap(new WireWriter(Op.PEER_WHISPER).string(target).bytes(whisper.wire()).toByteArray());
+        if (frame == null) return false;
+        link.send(frame);
+        return true;
+    }
+
+    /**
+     * Send our local users to a freshly dialed peer and start relaying to it.
+     * Called with the presence lock held, so no join or leave slips between
+     * the snapshot and the deltas that follow it.
+     */
+    void linkUp(PeerLink link, Collection<String> localUsers) {
+        List<String> chunk = new ArrayList<>(USERS_PER_CHUNK);
+        for (String nick : localUsers) {
+            chunk.add(nick);
+            if (chunk.size() == USERS_PER_CHUNK) {
+                link.send(new WireWriter(Op.PEER_USERS).strings(chunk).toByteArray());
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) link.send(new WireWriter(Op.PEER_USERS).strings(chunk).toByteArray());
+        link.send(new WireWriter(Op.PEER_SYNCED).toByteArray());
+        links.put(link.nodeId, link);
+    }
+
+    /**
+     * A wrapped client frame, or null if it is too large for the peer's
+     * reader, which would otherwise drop the link and with it every user on
+     * this node.
+     */
+    private static byte[] wrap(byte[] frame) {
+        if (frame.length <= MAX_PEER_FRAME) return frame;
+        System.out.println("Not relaying a " + frame.length + "-byte frame: over the peer frame limit");
+        return null;
+    }
+
+    private void sendAll(byte[] frame) {
+        if (frame == null) return;
+        for (PeerLink link : links.values()) {
+            link.send(frame);
+        }
+    }
+
+    private static byte[] nonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * What node {@code prover}, in {@code role} ("dial" or "accept"), answers
+     * to {@code nonce}. The role keeps one side's answer from being played
+     * back as the other's.
+     */
+    private byte[] proof(String role, byte[] nonce, String prover) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update((role + "\0" + prover + "\0").getBytes(StandardCharsets.UTF_8));
+            return mac.doFinal(nonce);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Keep one outbound link to {@code address} up, redialing after failures. */
+    private void dial(String address) {
+        int colon = address.lastIndexOf(':');
+        String host = address.substring(0, colon);
+        int port = Integer.parseInt(address.substring(colon + 1));
+        while (true) {
+            PeerLink link = null;
+            try (Socket s = new Socket(host, port)) {
+                s.setTcpNoDelay(true);
+                s.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                byte[] nonce = nonce();
+                s.getOutputStream().write(new WireWriter(Op.PEER_HELLO).string(nodeId).bytes(nonce).toByteArray());
+                byte[] reply = Wire.readFrame(s.getInputStream());
+                if (reply == null) throw new IOException("peer closed during handshake");
+                WireReader in = new WireReader(reply);
+                if (in.op() != Op.PEER_HELLO) throw new IOException("not a chat server peer: " + address);
+                String peer = in.string();
+                byte[] peerNonce = in.bytes();
+                if (!MessageDigest.isEqual(in.bytes(), proof("accept", nonce, peer))) {
+                    System.out.println("Peer " + address + " failed authentication; check the cluster secret");
+                    throw new IOException("peer failed authentication");
+                }
+                s.getOutputStream().write(new WireWriter(Op.PEER_AUTH).bytes(proof("dial", peerNonce, nodeId)).toByteArray());
+                s.setSoTimeout(0);
+                link = new PeerLink(peer, s);
+                ChatServer.presence.attachPeer(link);
+                System.out.println("Peer link up: " + nodeId + " -> " + link.nodeId);
+                link.writeLoop();
+            } catch (IOException | IllegalArgumentException e) {
+                if (link != null) System.out.println("Peer link down: " + nodeId + " -> " + link.nodeId);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                if (link != null) links.remove(link.nodeId, link);
+            }
+            try {
+                Thread.sleep(REDIAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // --- Inbound: events from other nodes, applied locally and never relayed again ---
+
+    private void serve(Socket s) {
+        String node = null;
+        try (s) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            s.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            byte[] body = Wire.readFrame(in, MAX_PEER_FRAME);
+            if (body == null) return;
+            WireReader hello = new WireReader(body);
+            if (hello.op() != Op.PEER_HELLO) return;
+            String peer = hello.string();
+            byte[] nonce = nonce();
+            s.getOutputStream().write(new WireWriter(Op.PEER_HELLO).string(nodeId).bytes(nonce)
+                    .bytes(proof("accept", hello.bytes(), nodeId)).toByteArray());
+            body = Wire.readFrame(in, MAX_PEER_FRAME);
+            WireReader auth = body == null ? null : new WireReader(body);
+            if (auth == null || auth.op() != Op.PEER_AUTH || !MessageDigest.isEqual(auth.bytes(), proof("dial", nonce, peer))) {
+                System.out.println("Peer at " + s.getRemoteSocketAddress() + " failed authentication");
+                return;
+            }
+            s.setSoTimeout(0);
+            node = peer;
+            Socket previous = inbound.put(node, s);
+            if (previous != null) previous.close();
+
+            Set<String> snapshot = new HashSet<>();
+            while ((body = Wire.readFrame(in, MAX_PEER_FRAME)) != null) {
+                WireReader r = new WireReader(body);
+                switch (r.op()) {
+                    case Op.PEER_USERS      -> snapshot.addAll(r.strings());
+                    case Op.PEER_SYNCED     -> ChatServer.presence.remoteReset(node, snapshot);
+                    case Op.PEER_USER_JOIN  -> ChatServer.presence.remoteJoin(node, r.string());
+                    case Op.PEER_USER_LEAVE -> ChatServer.presence.remoteLeave(node, r.string());
+                    case Op.PEER_PUBLISH    -> ChatServer.deliver(r.string(), Frame.fromWire(r.bytes()));
+                    case Op.PEER_WHISPER    -> ChatServer.deliverWhisper(r.string(), Frame.fromWire(r.bytes()));
+                    case Op.PEER_TYPING     -> ChatServer.typing.typing(r.string(), r.string());
+                    case Op.PEER_STOPPED    -> ChatServer.typing.stopped(r.string(), r.string());
+                    case Op.PEER_REACT      -> ChatServer.reactions.react(r.string(), r.varint(), r.string(), r.string());
+                    default -> { }
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // peer gone or speaking nonsense; its users go with it
+        } finally {
+            if (node != null && inbound.remove(node, s)) ChatServer.presence.remoteReset(node, Set.of());
+        }
+    }
+
+    private static void daemon(String name, Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+}
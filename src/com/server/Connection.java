@@ -0,0 +1,109 @@
+package com.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One logged-in (or logging-in) chat peer, independent of the I/O model
+ * that serves it. The blocking and NIO engines both hand their input to
+ * {@link ChatServer#handleLine} (or {@link ChatServer#handleFrame} for
+ * binary-protocol clients) and drain {@link #outbound} with their own
+ * writer, so senders never wait on this peer's socket.
+ */
+abstract class Connection {
+    // Set once the first line (the nickname) has been read
+    volatile String nickname;
+    // Negotiated in the handshake; fixed before any frame other than HELLO_OK is queued
+    volatile boolean binary;
+    // A line-protocol client that asked for message IDs in the handshake (see Wire#TEXT_IDS)
+    volatile boolean textIds;
+    // Proves a later login to be this client reconnecting (see Op#LOGIN_OK); null for line-protocol clients
+    volatile String resumeToken;
+    // Named rooms this peer has joined (the lobby is implicit); maintained by Rooms
+    final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+    final OutboundQueue outbound = new OutboundQueue(ChatServer.queuePolicy, this);
+
+    // --- Rate limits, reader thread only ---
+    // One bucket per RateLimit, created on first use
+    final TokenBucket[] buckets = new TokenBucket[RateLimit.values().length];
+    // Bit per RateLimit: told THROTTLED, and the bucket hasn't been full since
+    int throttled;
+
+    // --- Deadlines, checked by the idle wheel ---
+    // When input last arrived, set by the engine's reader
+    private volatile long lastReadNanos = System.nanoTime();
+    // When the pending socket write last made progress; 0 while no write is pending
+    volatile long writeStalledSince;
+    // Set once cleanup has run, so the wheel drops this connection
+    volatile boolean gone;
+    // The lastReadNanos our last PING answered for; wheel thread only
+    private long pingedRead = lastReadNanos - 1;
+
+    /** Queue one frame for this peer, disconnecting it if it is lagging past the policy limit. */
+    final void send(Frame frame) {
+        if (outbound.offer(frame)) onQueued();
+        else close();
+    }
+
+    /** Deliver what is already queued, then close. */
+    final void closeAfterFlush() {
+        outbound.finish();
+        onQueued();
+    }
+
+    /** Note that input arrived; anything the peer sends counts as a heartbeat. */
+    final void onInput() {
+        lastReadNanos = System.nanoTime();
+    }
+
+    /**
+     * Run by the idle wheel. A logged-in peer that has been quiet for the
+     * ping interval gets one {@code PING}; a peer quiet past the idle
+     * timeout, or whose pending write has made no progress within the write
+     * timeout, is closed, which runs the usual {@link ChatServer#logout}.
+     * Only binary clients know to answer a {@code PING}, so a logged-in
+     * line-protocol client is neither pinged nor closed for being quiet;
+     * only the write timeout applies to it.
+     * @return when to check again, or 0 once the connection is gone
+     */
+    final long checkDeadlines(long now) {
+        if (gone) return 0;
+        long lastRead = lastReadNanos;
+        long stalled = writeStalledSince;
+        if (nickname != null && !binary) {
+            if (stalled != 0 && now - stalled >= ChatServer.writeTimeoutNanos) {
+                Metrics.WRITE_TIMEOUTS.increment();
+                close();
+                return 0;
+            }
+            return (stalled != 0 ? stalled : now) + ChatServer.writeTimeoutNanos;
+        }
+        if (now - lastRead >= ChatServer.idleTimeoutNanos) {
+            Metrics.IDLE_CLOSES.increment();
+            close();
+            return 0;
+        }
+        if (stalled != 0 && now - stalled >= ChatServer.writeTimeoutNanos) {
+            Metrics.WRITE_TIMEOUTS.increment();
+            close();
+            return 0;
+        }
+        long next = lastRead + ChatServer.idleTimeoutNanos;
+        long pingAt = lastRead + ChatServer.pingIntervalNanos;
+        if (pingAt - now > 0) {
+            next = Math.min(next, pingAt);
+        } else if (nickname != null && pingedRead != lastRead) {
+            pingedRead = lastRead;
+            send(Frame.ping());
+        }
+        // A write may stall at any time; don't leave it unnoticed for longer than the write timeout
+        return Math.min(next, (stalled != 0 ? stalled : now) + ChatServer.writeTimeoutNanos);
+    }
+
+    /** Called after a frame was queued, so the engine can wake its writer. */
+    abstract void onQueued();
+
+    /** Close the underlying transport; cleanup runs through {@link ChatServer#logout}. */
+    abstract void close();
+}
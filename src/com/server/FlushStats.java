@@ -0,0 +1,28 @@
+package com.server;
+
+/**
+ * Server-wide write coalescing statistics: how many bytes each socket write
+ * carried, and how long the oldest frame in it waited from creation to the
+ * write returning. Used to tune {@code --flush-window-us} and
+ * {@code --flush-bytes}.
+ */
+final class FlushStats {
+    static final Histogram BYTES = new Histogram();
+    static final Histogram LATENCY_NANOS = new Histogram();
+
+    private FlushStats() {}
+
+    static void record(int bytes, long oldestFrameNanos) {
+        BYTES.record(bytes);
+        LATENCY_NANOS.record(System.nanoTime() - oldestFrameNanos);
+    }
+
+    /** One-line summary for the stats report. */
+    static String summary() {
+        return "flushes=" + BYTES.count()
+                + " flushBytesAvg=" + BYTES.mean()
+                + " flushBytesP99=" + BYTES.percentile(0.99)
+                + " flushLatencyP50us=" + LATENCY_NANOS.percentile(0.50) / 1000
+                + " flushLatencyP99us=" + LATENCY_NANOS.percentile(0.99) / 1000;
+    }
+}
@@ -0,0 +1,271 @@
+package com.server;
+
+import com.protocol.Op;
+import com.protocol.Transfer;
+import com.protocol.Wire;
+import com.protocol.WireReader;
+import com.protocol.WireWriter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * One outbound message: an opcode and its fields (see {@link Op}). It is
+ * encoded at most once per protocol - to a text line for line-protocol
+ * clients and to a length-prefixed frame for binary clients - the first
+ * time a writer needs it. The encoded payloads are read-only buffers shared
+ * by every connection the frame is queued to; writers only read them with
+ * absolute gets, so no per-recipient copy or view is ever made.
+ */
+final class Frame {
+    /**
+     * Delivery class. Each connection's writer sends queued frames lane by
+     * lane in this order, and a full queue sheds them in the reverse order.
+     * Frames are only kept in order within a lane, so anything a client
+     * must see in sequence with chat lines travels with them.
+     */
+    enum Lane {
+        /** Session state: handshake, presence deltas, pings, throttling, upload grants. Few and small. */
+        CONTROL,
+        /** Messages, notices, room membership, reaction counts and replay markers. */
+        CHAT,
+        /** Transient state (typing digests): a newer frame supersedes a queued one, and these are dropped first. */
+        EPHEMERAL
+    }
+
+    final int op;
+    private final Object[] fields;
+    final Lane lane;
+    final long createdNanos = System.nanoTime();
+
+    // Lazily encoded; a race at worst encodes twice. textIds is only used for frames with an ID
+    private volatile ByteBuffer text, textIds, binary;
+
+    private Frame(Lane lane, int op, Object... fields) {
+        this.op = op;
+        this.fields = fields;
+        this.lane = lane;
+    }
+
+    static Frame helloOk()                              { return new Frame(Lane.CONTROL, Op.HELLO_OK); }
+    static Frame chat(String room, long id, String nick, String text) {
+        return new Frame(Lane.CHAT, Op.CHAT, room, id, nick, text);
+    }
+    static Frame attachment(String room, long id, String nick, String name, long size, String fileId, int port) {
+        return new Frame(Lane.CHAT, Op.ATTACHMENT, room, id, nick, name, size, fileId, (long) port);
+    }
+    static Frame notice(String text)                    { return new Frame(Lane.CHAT, Op.NOTICE, text); }
+    static Frame whisperFrom(long id, String from, String text) { return new Frame(Lane.CHAT, Op.WHISPER_FROM, id, from, text); }
+    static Frame whisperTo(long id, String to, String text)     { return new Frame(Lane.CHAT, Op.WHISPER_TO, id, to, text); }
+    static Frame userList(Collection<String> nicks)     { return new Frame(Lane.CONTROL, Op.USER_LIST, List.copyOf(nicks)); }
+    static Frame userListPart(Collection<String> nicks) { return new Frame(Lane.CONTROL, Op.USER_LIST_PART, List.copyOf(nicks)); }
+    static Frame userJoin(String nick)                  { return new Frame(Lane.CONTROL, Op.USER_JOIN, nick); }
+    static Frame userLeave(String nick)                 { return new Frame(Lane.CONTROL, Op.USER_LEAVE, nick); }
+    static Frame nickTaken(String nick)                 { return new Frame(Lane.CONTROL, Op.NICK_TAKEN, nick); }
+    static Frame nickInvalid(String reason)             { return new Frame(Lane.CONTROL, Op.NICK_INVALID, reason); }
+    static Frame loginOk(String token)                  { return new Frame(Lane.CONTROL, Op.LOGIN_OK, token); }
+    static Frame typingSet(String room, Collection<String> nicks) {
+        return new Frame(Lane.EPHEMERAL, Op.TYPING_SET, room, List.copyOf(nicks));
+    }
+    static Frame reactionSummary(String room, long id, List<String> emojis, long[] counts) {
+        return new Frame(Lane.CHAT, Op.REACTION_SUMMARY, room, id, List.copyOf(emojis), counts.clone());
+    }
+    static Frame clearHistory()                         { return new Frame(Lane.CHAT, Op.CLEAR_HISTORY); }
+    static Frame friendAdded(String nick)               { return new Frame(Lane.CONTROL, Op.FRIEND_ADDED, nick); }
+    static Frame roomJoined(String room)                { return new Frame(Lane.CHAT, Op.ROOM_JOINED, room); }
+    static Frame roomParted(String room)                { return new Frame(Lane.CHAT, Op.ROOM_PARTED, room); }
+    static Frame replayBegin(String key)                { return new Frame(Lane.CHAT, Op.REPLAY_BEGIN, key); }
+    static Frame replayEnd(String key)                  { return new Frame(Lane.CHAT, Op.REPLAY_END, key); }
+    static Frame ping()                                 { return new Frame(Lane.CONTROL, Op.PING); }
+    static Frame throttled(String command, long retryAfterMillis) {
+        return new Frame(Lane.CONTROL, Op.THROTTLED, command, retryAfterMillis);
+    }
+    static Frame uploadReady(long tag, String id, String key, int port) {
+        return new Frame(Lane.CONTROL, Op.UPLOAD_READY, tag, id, key, (long) port);
+    }
+
+    /** The binary encoding, length prefix included, for relaying to other cluster nodes. */
+    byte[] wire() {
+        ByteBuffer b = binaryPayload();
+        byte[] out = new byte[b.capacity()];
+        b.get(0, out);
+        return out;
+    }
+
+    /**
+     * Rebuild a frame relayed by another node from its {@link #wire()} bytes,
+     * which are then reused as this frame's binary encoding. Only frames that
+     * are published to rooms, and forwarded whispers, are ever relayed.
+     */
+    static Frame fromWire(byte[] wire) {
+        WireReader in = new WireReader(wire);
+        in.varint();    // length prefix
+        int op = in.op();
+        Frame f = switch (op) {
+            case Op.CHAT     -> chat(in.string(), in.varint(), in.string(), in.string());
+            case Op.ATTACHMENT -> attachment(in.string(), in.varint(), in.string(), in.string(), in.varint(),
+                    in.string(), (int) in.varint());
+            case Op.NOTICE   -> notice(in.string());
+            case Op.WHISPER_FROM -> whisperFrom(in.varint(), in.string(), in.string());
+            default -> throw new IllegalArgumentException("opcode " + op + " is not relayed");
+        };
+        f.binary = ByteBuffer.wrap(wire).asReadOnlyBuffer();
+        return f;
+    }
+
+    /** The room of a chat line, attachment, reaction summary or typing digest; null for other frames. */
+    String room() {
+        return switch (op) {
+            case Op.CHAT, Op.ATTACHMENT, Op.REACTION_SUMMARY, Op.TYPING_SET -> (String) fields[0];
+            default -> null;
+        };
+    }
+
+    /**
+     * Whether a full queue may shed this frame. Control frames, room
+     * membership changes and replay markers never are: the client applies
+     * them as state changes, so losing one leaves it wrong until it
+     * reconnects. The latter travel in the chat lane to stay in order with
+     * the room's lines.
+     */
+    boolean sheddable() {
+        return switch (op) {
+            case Op.ROOM_JOINED, Op.ROOM_PARTED, Op.REPLAY_BEGIN, Op.REPLAY_END -> false;
+            default -> lane != Lane.CONTROL;
+        };
+    }
+
+    /** For an ephemeral frame, what it carries the latest state of: a queued frame with an equal key is stale. */
+    Object supersedeKey() {
+        return op == Op.TYPING_SET ? fields[0] : null;
+    }
+
+    /** The message ID of a chat line, attachment or whisper; 0 for other frames. */
+    long id() {
+        return switch (op) {
+            case Op.CHAT, Op.ATTACHMENT -> (Long) fields[1];
+            case Op.WHISPER_FROM, Op.WHISPER_TO -> (Long) fields[0];
+            default -> 0;
+        };
+    }
+
+    /** Encoded size in bytes in the protocol {@code c} speaks. */
+    int length(Connection c) {
+        return payload(c).capacity();
+    }
+
+    /** Encoded size for a binary or a plain line-protocol client, for estimates that don't track each connection. */
+    int length(boolean binaryProtocol) {
+        return (binaryProtocol && op != Op.HELLO_OK ? binaryPayload() : textPayload()).capacity();
+    }
+
+    /** Copy {@code len} bytes starting at {@code from} into {@code dst} at its position. */
+    void copyTo(Connection c, ByteBuffer dst, int from, int len) {
+        dst.put(dst.position(), payload(c), from, len);
+        dst.position(dst.position() + len);
+    }
+
+    /** Copy {@code len} bytes starting at {@code from} into {@code dst[dstOff..]}. */
+    void copyTo(Connection c, byte[] dst, int dstOff, int from, int len) {
+        payload(c).get(from, dst, dstOff, len);
+    }
+
+    private ByteBuffer payload(Connection c) {
+        // The handshake ack is the last text line a binary client reads
+        if (c.binary && op != Op.HELLO_OK) return binaryPayload();
+        if (c.textIds && id() != 0) {
+            ByteBuffer t = textIds;
+            if (t == null) textIds = t = encodeText(true);
+            return t;
+        }
+        return textPayload();
+    }
+
+    private ByteBuffer textPayload() {
+        ByteBuffer t = text;
+        if (t == null) text = t = encodeText(false);
+        return t;
+    }
+
+    private ByteBuffer binaryPayload() {
+        ByteBuffer b = binary;
+        if (b == null) binary = b = ByteBuffer.wrap(encodeBinary()).asReadOnlyBuffer();
+        return b;
+    }
+
+    private ByteBuffer encodeText(boolean withId) {
+        return ByteBuffer.wrap((textLine(withId) + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] encodeBinary() {
+        WireWriter w = new WireWriter(op);
+        for (Object f : fields) {
+            if (f instanceof String s) w.string(s);
+            else if (f instanceof Long n) w.varint(n);
+            else if (f instanceof long[] a) w.varints(a);
+            else w.strings((List<String>) f);
+        }
+        return w.toByteArray();
+    }
+
+    /**
+     * The line-protocol rendering, unchanged from before the binary protocol
+     * existed. Logged messages start with {@code ID <messageId> } for clients
+     * that asked for IDs ({@code withId}). Chat lines, attachments and
+     * reaction summaries outside the lobby are prefixed with
+     * {@code ROOM <room> }; an attachment reads as a chat line carrying its
+     * {@link Transfer#reference}.
+     */
+    @SuppressWarnings("unchecked")
+    private String textLine(boolean withId) {
+        String id = withId ? "ID " + id() + " " : "";
+        return switch (op) {
+            case Op.HELLO_OK      -> Wire.HELLO_OK;
+            case Op.CHAT          -> roomPrefix() + id + fields[2] + ": " + fields[3];
+            case Op.ATTACHMENT    -> roomPrefix() + id + fields[2] + ": "
+                    + Transfer.reference((String) fields[3], (Long) fields[4], ((Long) fields[6]).intValue(), (String) fields[5]);
+            case Op.NOTICE        -> (String) fields[0];
+            case Op.WHISPER_FROM  -> id + "(whisper) " + fields[1] + ": " + fields[2];
+            case Op.WHISPER_TO    -> id + "(whisper to " + fields[1] + ") " + fields[2];
+            case Op.USER_LIST     -> "USER_LIST " + String.join(",", (List<String>) fields[0]);
+            case Op.USER_LIST_PART -> "USER_LIST_PART " + String.join(",", (List<String>) fields[0]);
+            case Op.USER_JOIN     -> "USER_JOIN " + fields[0];
+            case Op.USER_LEAVE    -> "USER_LEAVE " + fields[0];
+            case Op.NICK_TAKEN    -> "NICK_TAKEN " + fields[0];
+            case Op.NICK_INVALID  -> "NICK_INVALID " + fields[0];
+            case Op.LOGIN_OK      -> "LOGIN_OK " + fields[0];
+            case Op.TYPING_SET    -> "TYPING_SET " + fields[0] + " " + String.join(",", (List<String>) fields[1]);
+            case Op.REACTION_SUMMARY -> roomPrefix() + "REACTION_SUMMARY " + fields[1] + " " + counts();
+            case Op.CLEAR_HISTORY -> "CLEAR_HISTORY";
+            case Op.FRIEND_ADDED  -> "(SYSTEM) Added friend: " + fields[0];
+            case Op.ROOM_JOINED   -> "ROOM_JOINED " + fields[0];
+            case Op.ROOM_PARTED   -> "ROOM_PARTED " + fields[0];
+            case Op.REPLAY_BEGIN  -> "REPLAY_BEGIN " + fields[0];
+            case Op.REPLAY_END    -> "REPLAY_END " + fields[0];
+            case Op.PING          -> "PING";
+            case Op.THROTTLED     -> "THROTTLED " + fields[0] + " " + fields[1];
+            case Op.UPLOAD_READY  -> "UPLOAD_READY " + fields[0] + " " + fields[1] + " " + fields[2] + " " + fields[3];
+            default -> throw new IllegalStateException("no text form for opcode " + op);
+        };
+    }
+
+    /** "emoji:count,..." for a reaction summary. */
+    @SuppressWarnings("unchecked")
+    private String counts() {
+        List<String> emojis = (List<String>) fields[2];
+        long[] counts = (long[]) fields[3];
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < emojis.size(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append(emojis.get(i)).append(':').append(counts[i]);
+        }
+        return sb.toString();
+    }
+
+    private String roomPrefix() {
+        return Rooms.LOBBY.equals(fields[0]) ? "" : "ROOM " + fields[0] + " ";
+    }
+}
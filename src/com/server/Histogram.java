@@ -0,0 +1,61 @@
+package com.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free, allocation-free histogram with power-of-two buckets: bucket
+ * {@code i} counts values in {@code [2^(i-1), 2^i)}. Good to within a
+ * factor of two, which is enough to compare runs and spot tail growth.
+ */
+final class Histogram {
+    static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    /** Number of values recorded in bucket {@code i}. */
+    long bucket(int i) {
+        return buckets.get(i);
+    }
+
+    /** Largest value bucket {@code i} can hold. */
+    static long upperBound(int i) {
+        return i == 0 ? 0 : i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    long sum() {
+        return sum.sum();
+    }
+
+    long mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    /** Upper bound of the bucket holding quantile {@code q} (0..1). */
+    long percentile(double q) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) total += buckets.get(i);
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) return upperBound(i);
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,32 @@
+package com.server;
+
+/**
+ * A connection with no transport behind it. Frames are queued exactly as
+ * for a socket client, and {@link #drain} stands in for the writer, so
+ * benchmarks can drive the server core without the loopback stack.
+ */
+final class InMemoryConnection extends Connection {
+    InMemoryConnection(boolean binary) {
+        this.binary = binary;
+    }
+
+    /** Dequeue everything queued, as a writer would. @return the bytes a writer would have sent */
+    long drain() {
+        long bytes = 0;
+        Frame f;
+        while ((f = outbound.poll()) != null) {
+            bytes += f.length(this);
+        }
+        return bytes;
+    }
+
+    @Override
+    void onQueued() {
+        // nothing to wake; drain() is called by whoever drives this connection
+    }
+
+    @Override
+    void close() {
+        outbound.close();
+    }
+}
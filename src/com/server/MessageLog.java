@@ -0,0 +1,374 @@
+package com.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
+
+/**
+ * Append-only log of every chat and whisper frame, in segments of
+ * {@code <base>.log} + {@code <base>.idx}. Each appended frame gets the next
+ * message ID. A segment's index is a memory-mapped array of file offsets,
+ * one per ID from the segment's base, so reading a message by ID is a map
+ * floor lookup plus one positional read.
+ * <p>
+ * Record layout: {@code [int length][long id][long timeMillis][short keyLength][key][frame]},
+ * where key is the room (or {@code @nickname} for a whisper) and frame is the
+ * frame's binary encoding. Segments roll when full (bytes or index slots) or
+ * too old; whole segments past the retention age are deleted at each roll.
+ * Only the segment being appended to keeps its index mapped; a rolled one
+ * has its index file trimmed to the slots used and read with plain reads.
+ * <p>
+ * An append only assigns the ID and queues the record, so publishing never
+ * waits on the disk and rooms don't serialize behind each other's writes.
+ * The {@code message-log} thread writes queued records in ID order to the
+ * page cache, without forcing them to disk; until then reads are served
+ * from the queued copy.
+ * <p>
+ * In a cluster each node logs what it published itself; the node number
+ * in the top bits of each ID keeps IDs unique across nodes.
+ */
+final class MessageLog {
+    private static final int INDEX_ENTRIES = 1 << 20;
+    private static final int HEADER = 4 + 8 + 8 + 2;
+    static final int NODE_SHIFT = 48;
+    private static final long SEQ_MASK = (1L << NODE_SHIFT) - 1;
+
+    private final Path dir;
+    private final long segmentBytes, rollMillis, retentionMillis;
+    private final long nodeBits;
+    // Segments by base sequence number; the last one is being appended to (writer thread only, after startup)
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    // Written under the append lock, read by replays without it
+    private volatile long nextSeq = 1;
+    // Held only to assign an ID and queue its record, never across I/O
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+    // Records queued but not written yet, by sequence number
+    private final Map<Long, ByteBuffer> unwritten = new ConcurrentHashMap<>();
+    private final Thread writer;
+
+    private record Pending(long seq, long millis, ByteBuffer rec) {}
+
+    MessageLog(Path dir, long segmentBytes, long rollMillis, long retentionMillis, int node) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.rollMillis = rollMillis;
+        this.retentionMillis = retentionMillis;
+        this.nodeBits = (long) node << NODE_SHIFT;
+        Files.createDirectories(dir);
+        TreeSet<Long> bases = new TreeSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path f : files) {
+                String name = f.getFileName().toString();
+                bases.add(Long.parseLong(name.substring(0, name.length() - ".log".length())));
+            }
+        }
+        // Only the newest segment is appended to; the others open sealed
+        for (long base : bases) {
+            segments.put(base, new Segment(dir, base, base == bases.last()));
+        }
+        if (segments.isEmpty()) {
+            segments.put(nextSeq, new Segment(dir, nextSeq, true));
+        } else {
+            Segment last = segments.lastEntry().getValue();
+            nextSeq = last.base + last.count;
+        }
+        applyRetention();
+        writer = new Thread(this::writeLoop, "message-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Assign the next ID, build the frame carrying it and queue the frame to
+     * be appended under {@code key} (a room, or {@code @nickname} for whispers).
+     */
+    Frame append(String key, LongFunction<Frame> build) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        Frame frame;
+        appendLock.lock();
+        try {
+            long seq = nextSeq;
+            long id = nodeBits | seq;
+            frame = build.apply(id);
+            byte[] wire = frame.wire();
+            long now = System.currentTimeMillis();
+            int size = HEADER + k.length + wire.length;
+            ByteBuffer rec = ByteBuffer.allocate(size);
+            rec.putInt(size).putLong(id).putLong(now).putShort((short) k.length).put(k).put(wire).flip();
+            unwritten.put(seq, rec);
+            queue.add(new Pending(seq, now, rec));
+            nextSeq = seq + 1;
+        } finally {
+            appendLock.unlock();
+        }
+        LockSupport.unpark(writer);
+        return frame;
+    }
+
+    /** Write queued records in sequence order, for good. */
+    private void writeLoop() {
+        while (true) {
+            Pending p = queue.poll();
+            if (p == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            write(p);
+            unwritten.remove(p.seq());
+        }
+    }
+
+    private void write(Pending p) {
+        try {
+            Segment seg = segments.lastEntry().getValue();
+            // A record lost to an earlier failure leaves a gap the index can't express: start a new segment
+            if (seg.base + seg.count != p.seq() || seg.count > 0 && (seg.size + p.rec().limit() > segmentBytes
+                    || seg.count == INDEX_ENTRIES || p.millis() - seg.firstMillis > rollMillis)) {
+                seg = roll(p.seq());
+            }
+            seg.append(p.rec().duplicate(), p.millis());
+        } catch (IOException e) {
+            // History is best effort; the message itself still goes out
+            e.printStackTrace();
+        }
+    }
+
+    /** A logged record, queued or written; null if there is none for {@code seq}. */
+    private ByteBuffer record(long seq) throws IOException {
+        ByteBuffer queued = unwritten.get(seq);
+        if (queued != null) return queued.duplicate();
+        Map.Entry<Long, Segment> e = segments.floorEntry(seq);
+        return e == null ? null : e.getValue().read(seq);
+    }
+
+    /** The frame logged under {@code id} (its binary encoding), or null if it is not in this node's log. */
+    byte[] read(long id) {
+        if ((id & ~SEQ_MASK) != nodeBits) return null;
+        try {
+            ByteBuffer rec = record(id & SEQ_MASK);
+            if (rec == null) return null;
+            rec.position(4 + 8 + 8);
+            rec.position(rec.position() + 2 + rec.getShort());
+            byte[] wire = new byte[rec.remaining()];
+            rec.get(wire);
+            return wire;
+        } catch (IOException ex) {
+            return null;    // segment deleted by retention meanwhile
+        }
+    }
+
+    /** Result of {@link #readAfter}: frames in log order, and whether they cover the whole gap. */
+    record Replay(List<byte[]> frames, boolean complete) {}
+
+    /**
+     * The newest {@code max} frames logged under {@code key} after message
+     * {@code afterId}, looking at no more than {@code maxScan} records back
+     * from the tail. Runs alongside appends.
+     * @return null if {@code afterId} was not issued by this node
+     */
+    Replay readAfter(String key, long afterId, int max, int maxScan) {
+        if (!isLocal(afterId)) return null;
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        long end = nextSeq;
+        long from = (afterId & SEQ_MASK) + 1;
+        Map.Entry<Long, Segment> first = segments.firstEntry();
+        boolean complete = from >= first.getKey() && end - from <= maxScan;
+        ArrayDeque<byte[]> frames = new ArrayDeque<>();
+        for (long seq = Math.max(from, Math.max(first.getKey(), end - maxScan)); seq < end; seq++) {
+            try {
+                ByteBuffer rec = record(seq);
+                if (rec == null) {
+                    complete = false;
+                    continue;
+                }
+                if (rec.getShort(20) != k.length
+                        || !rec.slice(HEADER, k.length).equals(ByteBuffer.wrap(k))) continue;
+                byte[] wire = new byte[rec.limit() - HEADER - k.length];
+                rec.get(HEADER + k.length, wire);
+                if (frames.size() == max) {
+                    frames.removeFirst();
+                    complete = false;
+                }
+                frames.addLast(wire);
+            } catch (IOException e) {
+                complete = false;   // segment deleted by retention meanwhile
+            }
+        }
+        return new Replay(new ArrayList<>(frames), complete);
+    }
+
+    /** Whether {@code id} was issued by this node. */
+    boolean isLocal(long id) {
+        return (id & ~SEQ_MASK) == nodeBits;
+    }
+
+    /** Seal the current segment and start one at {@code base}; an empty current one is replaced instead. */
+    private Segment roll(long base) throws IOException {
+        Segment last = segments.lastEntry().getValue();
+        if (last.count == 0) {
+            segments.remove(last.base);
+            last.delete();
+        } else {
+            last.seal();
+        }
+        Segment seg = new Segment(dir, base, true);
+        segments.put(base, seg);
+        applyRetention();
+        return seg;
+    }
+
+    private void applyRetention() {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        // Segment k is entirely older than the cutoff once segment k+1 started before it
+        while (segments.size() > 1) {
+            Map.Entry<Long, Segment> oldest = segments.firstEntry();
+            Segment next = segments.higherEntry(oldest.getKey()).getValue();
+            if (next.firstMillis > cutoff || next.count == 0) break;
+            segments.remove(oldest.getKey());
+            oldest.getValue().delete();
+        }
+    }
+
+    /**
+     * One {@code .log} file and its {@code .idx}. The active segment maps
+     * its whole index window for appends; a sealed one drops the mapping,
+     * so the only mappings alive at a time are the active segment's.
+     */
+    private static final class Segment {
+        final long base;
+        private final Path logPath, idxPath;
+        private final FileChannel log;
+        private final FileChannel idxChannel;
+        // Null once sealed; released when the last reader using it is done
+        private volatile MappedByteBuffer index;
+        volatile int count;
+        long size;
+        long firstMillis;
+
+        Segment(Path dir, long base, boolean active) throws IOException {
+            this.base = base;
+            this.logPath = dir.resolve(String.format("%020d.log", base));
+            this.idxPath = dir.resolve(String.format("%020d.idx", base));
+            this.log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.idxChannel = FileChannel.open(idxPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (active) {
+                index = idxChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) INDEX_ENTRIES * 8);
+                recover();
+            } else {
+                countSealed();
+            }
+        }
+
+        /** Count a sealed segment's records; its index may still be untrimmed if we stopped right after a roll. */
+        private void countSealed() throws IOException {
+            ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+            long pos = 0;
+            scan:
+            while (idxChannel.read(chunk.clear(), pos) > 0) {
+                chunk.flip();
+                while (chunk.remaining() >= 8) {
+                    if (chunk.getLong() == 0) break scan;
+                    count++;
+                }
+                pos += chunk.position();
+            }
+            size = log.size();
+            firstMillis = readFirstMillis();
+            idxChannel.truncate((long) count * 8);
+        }
+
+        /** Count the indexed records and drop any torn write past the last one. */
+        private void recover() throws IOException {
+            MappedByteBuffer index = this.index;
+            firstMillis = System.currentTimeMillis();
+            while (count < INDEX_ENTRIES && index.getLong(count * 8) != 0) count++;
+            while (count > 0) {
+                long pos = index.getLong((count - 1) * 8) - 1;
+                ByteBuffer len = ByteBuffer.allocate(4);
+                if (log.read(len, pos) == 4 && pos + len.getInt(0) <= log.size()) {
+                    size = pos + len.getInt(0);
+                    break;
+                }
+                index.putLong(--count * 8, 0);
+            }
+            log.truncate(size);
+            if (count > 0) firstMillis = readFirstMillis();
+        }
+
+        private long readFirstMillis() throws IOException {
+            if (size == 0) return System.currentTimeMillis();
+            ByteBuffer t = ByteBuffer.allocate(8);
+            log.read(t, 4 + 8);
+            return t.getLong(0);
+        }
+
+        void append(ByteBuffer rec, long now) throws IOException {
+            if (count == 0) firstMillis = now;
+            long pos = size;
+            while (rec.hasRemaining()) size += log.write(rec, size);
+            // Offsets are stored +1 so that 0 marks an unused slot
+            index.putLong(count * 8, pos + 1);
+            count++;
+        }
+
+        /** Stop appending: trim the index file to the slots used and let its mapping go. */
+        void seal() throws IOException {
+            index = null;
+            idxChannel.truncate((long) count * 8);
+        }
+
+        ByteBuffer read(long seq) throws IOException {
+            long slot = seq - base;
+            if (slot < 0 || slot >= count) return null;
+            long pos = slotOffset((int) slot) - 1;
+            if (pos < 0) return null;
+            ByteBuffer len = ByteBuffer.allocate(4);
+            if (log.read(len, pos) != 4) return null;
+            ByteBuffer rec = ByteBuffer.allocate(len.getInt(0));
+            while (rec.hasRemaining()) {
+                if (log.read(rec, pos + rec.position()) < 0) return null;
+            }
+            return rec.flip();
+        }
+
+        private long slotOffset(int slot) throws IOException {
+            MappedByteBuffer m = index;
+            if (m != null) return m.getLong(slot * 8);
+            ByteBuffer b = ByteBuffer.allocate(8);
+            while (b.hasRemaining()) {
+                if (idxChannel.read(b, (long) slot * 8 + b.position()) < 0) return 0;
+            }
+            return b.getLong(0);
+        }
+
+        void delete() {
+            try {
+                log.close();
+                idxChannel.close();
+                Files.deleteIfExists(logPath);
+                Files.deleteIfExists(idxPath);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.server;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Server-wide instrumentation. The hot path only bumps {@link LongAdder}s
+ * and {@link Histogram} buckets, which allocate nothing; gauges such as
+ * queue depths are computed when someone reads them. Everything is
+ * published over JMX ({@link MetricsMXBean}) and, with
+ * {@code --metrics-port}, as Prometheus text on
+ * {@code http://127.0.0.1:<port>/metrics}.
+ */
+final class Metrics {
+    /** Client commands, counted whichever protocol they arrive in. */
+    enum Command {
+        CHAT, WHISPER, REACT, TYPING, JOIN, PART, RESUME, ADD_FRIEND, CLEAR, UPLOAD;
+
+        final LongAdder count = new LongAdder();
+        final String label = name().toLowerCase(Locale.ROOT);
+    }
+
+    static final LongAdder ACCEPTS = new LongAdder();
+    // Connections closed by the idle wheel: silent past the idle timeout, or stuck in a write
+    static final LongAdder IDLE_CLOSES = new LongAdder();
+    static final LongAdder WRITE_TIMEOUTS = new LongAdder();
+    // Accepts held back by --max-accepts-per-second
+    static final LongAdder ACCEPTS_DELAYED = new LongAdder();
+    // Per broadcast: time to queue the frame to every local member, bytes queued, and members reached
+    static final Histogram FANOUT_NANOS = new Histogram();
+    static final Histogram BROADCAST_BYTES = new Histogram();
+    static final Histogram BROADCAST_RECIPIENTS = new Histogram();
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private static Collection<Connection> clients;
+    // Accepts during the last full second, updated by the sampler
+    private static volatile double acceptsPerSecond;
+
+    private Metrics() {}
+
+    /**
+     * Register the MBean and, if {@code httpPort > 0}, serve {@code /metrics}
+     * on the loopback interface. {@code clients} is every open connection.
+     */
+    static void start(Collection<Connection> clients, int httpPort) throws IOException {
+        Metrics.clients = clients;
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        long[] last = new long[1];
+        sampler.scheduleAtFixedRate(() -> {
+            long accepts = ACCEPTS.sum();
+            acceptsPerSecond = accepts - last[0];
+            last[0] = accepts;
+        }, 1, 1, TimeUnit.SECONDS);
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName("com.server:type=ChatServer"));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+
+        if (httpPort > 0) {
+            HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.start();
+            System.out.println("Metrics on http://127.0.0.1:" + httpPort + "/metrics");
+        }
+    }
+
+    /** Record one broadcast that began at {@code startNanos} and reached this many clients of each protocol. */
+    static void broadcast(Frame frame, int binaryClients, int textClients, long startNanos) {
+        FANOUT_NANOS.record(System.nanoTime() - startNanos);
+        long bytes = 0;
+        if (binaryClients > 0) bytes += (long) binaryClients * frame.length(true);
+        if (textClients > 0) bytes += (long) textClients * frame.length(false);
+        BROADCAST_BYTES.record(bytes);
+        BROADCAST_RECIPIENTS.record(binaryClients + textClients);
+    }
+
+    // --- Gauges, computed on read ---
+
+    /** Outbound queue depth of every open connection. */
+    private static Histogram queueDepths() {
+        Histogram depths = new Histogram();
+        for (Connection c : clients) {
+            depths.record(c.outbound.size());
+        }
+        return depths;
+    }
+
+    // --- Prometheus text exposition ---
+
+    static String prometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        out.append("# HELP chat_commands_total Client commands handled.\n# TYPE chat_commands_total counter\n");
+        for (Command c : Command.values()) {
+            out.append("chat_commands_total{command=\"").append(c.label).append("\"} ").append(c.count.sum()).append('\n');
+        }
+        counter(out, "chat_accepts_total", "Connections accepted.", ACCEPTS.sum());
+        counter(out, "chat_accepts_delayed_total", "Accepts held back by the accept rate limit.", ACCEPTS_DELAYED.sum());
+        gauge(out, "chat_accept_limit_per_second", "Accept rate limit; 0 is unlimited.", ChatServer.maxAcceptsPerSecond);
+        out.append("# HELP chat_throttled_total Commands dropped for exceeding a rate limit.\n# TYPE chat_throttled_total counter\n");
+        for (RateLimit l : RateLimit.values()) {
+            out.append("chat_throttled_total{command=\"").append(l.label).append("\"} ").append(l.throttled.sum()).append('\n');
+        }
+        out.append("# HELP chat_rate_limit_per_second Per-connection command rate limit; 0 is unlimited.\n# TYPE chat_rate_limit_per_second gauge\n");
+        for (RateLimit l : RateLimit.values()) {
+            out.append("chat_rate_limit_per_second{command=\"").append(l.label).append("\"} ").append(l.perSecond).append('\n');
+        }
+        out.append("# HELP chat_rate_limit_burst Per-connection command burst allowance.\n# TYPE chat_rate_limit_burst gauge\n");
+        for (RateLimit l : RateLimit.values()) {
+            out.append("chat_rate_limit_burst{command=\"").append(l.label).append("\"} ").append(l.burst).append('\n');
+        }
+        gauge(out, "chat_accepts_per_second", "Connections accepted during the last second.", acceptsPerSecond);
+        gauge(out, "chat_connected_clients", "Open client connections.", clients.size());
+        gauge(out, "chat_logged_in_users", "Users logged in on this node.", ChatServer.presence.connections().size());
+        counter(out, "chat_idle_closes_total", "Connections closed after the idle timeout.", IDLE_CLOSES.sum());
+        counter(out, "chat_write_timeouts_total", "Connections closed after a write stalled past the write timeout.", WRITE_TIMEOUTS.sum());
+        counter(out, "chat_attachments_total", "Attachment uploads completed.", AttachmentServer.COMPLETED.sum());
+        counter(out, "chat_attachment_received_bytes_total", "Attachment bytes uploaded.", AttachmentServer.BYTES_RECEIVED.sum());
+        counter(out, "chat_attachment_sent_bytes_total", "Attachment bytes downloaded.", AttachmentServer.BYTES_SENT.sum());
+        counter(out, "chat_queue_drops_total", "Frames dropped by full outbound queues.", OutboundQueue.TOTAL_DROPS.sum());
+        counter(out, "chat_queue_superseded_total", "Queued typing digests replaced by a newer one before being sent.", OutboundQueue.SUPERSEDED.sum());
+        histogram(out, "chat_client_queue_depth", "Outbound queue depth per client, sampled at scrape time.", queueDepths(), 1);
+        histogram(out, "chat_fanout_seconds", "Time to queue one broadcast to every local member.", FANOUT_NANOS, NANOS_PER_SECOND);
+        histogram(out, "chat_broadcast_bytes", "Encoded bytes queued per broadcast.", BROADCAST_BYTES, 1);
+        histogram(out, "chat_broadcast_recipients", "Local members reached per broadcast.", BROADCAST_RECIPIENTS, 1);
+        histogram(out, "chat_flush_bytes", "Bytes per socket write.", FlushStats.BYTES, 1);
+        histogram(out, "chat_flush_latency_seconds", "Oldest frame's wait from creation to socket write.", FlushStats.LATENCY_NANOS, NANOS_PER_SECOND);
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, double value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /** Cumulative buckets up to the highest one in use; recorded values are {@code perUnit}ths of the exported unit. */
+    private static void histogram(StringBuilder out, String name, String help, Histogram h, long perUnit) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        int top = Histogram.BUCKETS - 2;
+        while (top > 0 && h.bucket(top) == 0) top--;
+        long cumulative = 0;
+        for (int i = 0; i <= top; i++) {
+            cumulative += h.bucket(i);
+            out.append(name).append("_bucket{le=\"");
+            appendScaled(out, Histogram.upperBound(i), perUnit).append("\"} ").append(cumulative).append('\n');
+        }
+        // Read the buckets, not count(), so _count matches +Inf while recording goes on
+        for (int i = top + 1; i < Histogram.BUCKETS; i++) cumulative += h.bucket(i);
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        appendScaled(out.append(name).append("_sum "), h.sum(), perUnit).append('\n');
+        out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+
+    private static StringBuilder appendScaled(StringBuilder out, long value, long perUnit) {
+        return perUnit == 1 ? out.append(value) : out.append((double) value / perUnit);
+    }
+
+    // --- JMX ---
+
+    private static final class Bean implements MetricsMXBean {
+        @Override public int getConnectedClients()      { return clients.size(); }
+        @Override public int getLoggedInUsers()         { return ChatServer.presence.connections().size(); }
+        @Override public long getAccepts()              { return ACCEPTS.sum(); }
+        @Override public double getAcceptsPerSecond()   { return acceptsPerSecond; }
+        @Override public long getQueueDrops()           { return OutboundQueue.TOTAL_DROPS.sum(); }
+        @Override public long getQueueSuperseded()      { return OutboundQueue.SUPERSEDED.sum(); }
+        @Override public long getIdleCloses()           { return IDLE_CLOSES.sum(); }
+        @Override public long getWriteTimeouts()        { return WRITE_TIMEOUTS.sum(); }
+        @Override public long getAcceptsDelayed()       { return ACCEPTS_DELAYED.sum(); }
+        @Override public long getAttachments()          { return AttachmentServer.COMPLETED.sum(); }
+        @Override public long getAttachmentBytesReceived() { return AttachmentServer.BYTES_RECEIVED.sum(); }
+        @Override public long getAttachmentBytesSent()  { return AttachmentServer.BYTES_SENT.sum(); }
+        @Override public double getMaxAcceptsPerSecond() { return ChatServer.maxAcceptsPerSecond; }
+        @Override public long getBroadcasts()           { return FANOUT_NANOS.count(); }
+        @Override public long getFanOutP50Micros()      { return FANOUT_NANOS.percentile(0.50) / 1000; }
+        @Override public long getFanOutP99Micros()      { return FANOUT_NANOS.percentile(0.99) / 1000; }
+        @Override public long getBroadcastBytesMean()   { return BROADCAST_BYTES.mean(); }
+        @Override public long getBroadcastBytesP99()    { return BROADCAST_BYTES.percentile(0.99); }
+        @Override public long getFlushLatencyP99Micros() { return FlushStats.LATENCY_NANOS.percentile(0.99) / 1000; }
+
+        @Override
+        public int getQueuedFrames() {
+            int queued = 0;
+            for (Connection c : clients) queued += c.outbound.size();
+            return queued;
+        }
+
+        @Override
+        public int getMaxQueueDepth() {
+            int max = 0;
+            for (Connection c : clients) max = Math.max(max, c.outbound.size());
+            return max;
+        }
+
+        @Override
+        public Map<String, Long> getCommandCounts() {
+            Map<String, Long> counts = new LinkedHashMap<>();
+            for (Command c : Command.values()) counts.put(c.label, c.count.sum());
+            return counts;
+        }
+
+        @Override
+        public Map<String, Long> getThrottledCounts() {
+            Map<String, Long> counts = new LinkedHashMap<>();
+            for (RateLimit l : RateLimit.values()) counts.put(l.label, l.throttled.sum());
+            return counts;
+        }
+
+        @Override
+        public Map<String, String> getRateLimits() {
+            Map<String, String> limits = new LinkedHashMap<>();
+            for (RateLimit l : RateLimit.values()) limits.put(l.label, l.perSecond + "/s, burst " + l.burst);
+            return limits;
+        }
+    }
+}
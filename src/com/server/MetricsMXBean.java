@@ -0,0 +1,60 @@
+package com.server;
+
+import java.util.Map;
+
+/**
+ * The server's {@link Metrics} as seen over JMX, registered as
+ * {@code com.server:type=ChatServer}. Latencies are in microseconds.
+ */
+public interface MetricsMXBean {
+    int getConnectedClients();
+
+    int getLoggedInUsers();
+
+    long getAccepts();
+
+    double getAcceptsPerSecond();
+
+    int getQueuedFrames();
+
+    int getMaxQueueDepth();
+
+    long getQueueDrops();
+
+    long getQueueSuperseded();
+
+    long getIdleCloses();
+
+    long getWriteTimeouts();
+
+    long getAcceptsDelayed();
+
+    double getMaxAcceptsPerSecond();
+
+    long getAttachments();
+
+    long getAttachmentBytesReceived();
+
+    long getAttachmentBytesSent();
+
+    /** Commands handled so far, by name ({@code chat}, {@code whisper}, {@code react}, ...). */
+    Map<String, Long> getCommandCounts();
+
+    /** Commands dropped by rate limits, by limit ({@code any}, {@code chat}, ...). */
+    Map<String, Long> getThrottledCounts();
+
+    /** Per-connection rate limits, by limit, as {@code "<rate>/s, burst <n>"}. */
+    Map<String, String> getRateLimits();
+
+    long getBroadcasts();
+
+    long getFanOutP50Micros();
+
+    long getFanOutP99Micros();
+
+    long getBroadcastBytesMean();
+
+    long getBroadcastBytesP99();
+
+    long getFlushLatencyP99Micros();
+}
@@ -0,0 +1,231 @@
+package com.server;
+
+import com.protocol.Wire;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A client served by a {@link Reactor}. Reads are split into the same
+ * newline-terminated lines (or, after a binary handshake, length-prefixed
+ * frames) the blocking handler reads from its stream;
+ * the reactor drains the outbound queue whenever the socket is writable,
+ * batching as many encoded frames as fit into its staging buffer per write.
+ * With a flush window configured, OP_WRITE is only requested once the
+ * window has passed or a full write's worth of bytes is queued.
+ */
+final class NioConnection extends Connection {
+    private final Reactor reactor;
+    private final SocketChannel channel;
+    SelectionKey key;
+
+    private final ByteBuffer readBuf = ByteBuffer.allocate(8192);
+    private final ByteArrayOutputStream lineBuf = new ByteArrayOutputStream(256);
+    // Binary protocol: length prefix being decoded, then the body being filled
+    private int frameLen, frameLenShift;
+    private byte[] frame;
+    private int framePos;
+
+    // Frames taken from the queue but not yet fully written; the head is written from headOffset
+    private final ArrayDeque<Frame> inFlight = new ArrayDeque<>();
+    private int headOffset;
+    // Output state: nothing pending, holding back for the flush window, or OP_WRITE requested
+    private static final int IDLE = 0, WAITING = 1, WRITING = 2;
+    private final AtomicInteger writeState = new AtomicInteger(IDLE);
+    long flushDeadline;     // reactor thread only
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    NioConnection(Reactor reactor, SocketChannel channel) {
+        this.reactor = reactor;
+        this.channel = channel;
+    }
+
+    /** Called on the reactor thread when the channel has input. */
+    void onReadable() throws IOException {
+        int n = channel.read(readBuf);
+        if (n < 0) {
+            close();
+            return;
+        }
+        onInput();
+        readBuf.flip();
+        // The handshake line may switch the protocol part-way through a read
+        while (readBuf.hasRemaining() && !closed.get()) {
+            if (binary) readFrames();
+            else readLine();
+        }
+        readBuf.clear();
+    }
+
+    /** Consume bytes up to and including the next newline, dispatching the line if complete. */
+    private void readLine() {
+        while (readBuf.hasRemaining()) {
+            byte b = readBuf.get();
+            if (b == '\n') {
+                String line = lineBuf.toString(StandardCharsets.UTF_8);
+                lineBuf.reset();
+                dispatch(line);
+                return;
+            } else if (b != '\r') {
+                if (lineBuf.size() >= Wire.MAX_FRAME) {
+                    close();
+                    return;
+                }
+                lineBuf.write(b);
+            }
+        }
+    }
+
+    /** Consume length-prefixed frames, dispatching each one as it completes. */
+    private void readFrames() {
+        while (readBuf.hasRemaining() && !closed.get()) {
+            if (frame == null) {
+                byte b = readBuf.get();
+                frameLen |= (b & 0x7f) << frameLenShift;
+                frameLenShift += 7;
+                if ((b & 0x80) != 0) {
+                    if (frameLenShift >= 28) close();
+                    continue;
+                }
+                if (frameLen > Wire.MAX_FRAME) {
+                    close();
+                    return;
+                }
+                frame = new byte[frameLen];
+                framePos = 0;
+                frameLen = 0;
+                frameLenShift = 0;
+            }
+            int chunk = Math.min(frame.length - framePos, readBuf.remaining());
+            readBuf.get(frame, framePos, chunk);
+            framePos += chunk;
+            if (framePos == frame.length) {
+                byte[] body = frame;
+                frame = null;
+                if (!outbound.isFinishing()) ChatServer.handleFrame(this, body);
+            }
+        }
+    }
+
+    private void dispatch(String line) {
+        if (outbound.isFinishing()) return;     // refused login, closing after the reply
+        if (nickname == null) ChatServer.login(this, line);
+        else ChatServer.handleLine(this, line);
+    }
+
+    /** Called on the reactor thread when the channel can accept more output. */
+    void onWritable() throws IOException {
+        ByteBuffer staging = reactor.staging;
+        while (true) {
+            staging.clear();
+            int skip = headOffset;
+            for (Frame f : inFlight) {
+                if (!copy(f, skip, staging)) break;
+                skip = 0;
+            }
+            Frame next;
+            while (staging.hasRemaining() && (next = outbound.poll()) != null) {
+                inFlight.addLast(next);
+                copy(next, 0, staging);
+            }
+            if (staging.position() == 0) break;
+
+            staging.flip();
+            long oldest = inFlight.peekFirst().createdNanos;
+            int n = channel.write(staging);
+            if (n > 0) FlushStats.record(n, oldest);
+            consumed(n);
+            if (staging.hasRemaining()) {
+                // Socket full, wait for the next OP_WRITE; the write timeout runs from the last progress
+                if (n > 0 || writeStalledSince == 0) writeStalledSince = System.nanoTime();
+                return;
+            }
+        }
+        writeStalledSince = 0;
+        if (outbound.isFinishing()) {
+            close();
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        writeState.set(IDLE);
+        // A sender may have queued between the drain and the state reset
+        if (outbound.size() > 0) onQueued();
+    }
+
+    /** Copy as much of {@code f} from {@code from} as fits; true if all of it did. */
+    private boolean copy(Frame f, int from, ByteBuffer staging) {
+        int len = Math.min(f.length(this) - from, staging.remaining());
+        f.copyTo(this, staging, from, len);
+        return from + len == f.length(this);
+    }
+
+    /** Retire the in-flight frames covered by a write of {@code n} bytes. */
+    private void consumed(int n) {
+        while (n > 0) {
+            int rest = inFlight.peekFirst().length(this) - headOffset;
+            if (n < rest) {
+                headOffset += n;
+                return;
+            }
+            n -= rest;
+            inFlight.pollFirst();
+            headOffset = 0;
+        }
+    }
+
+    @Override
+    void onQueued() {
+        while (!closed.get()) {
+            int state = writeState.get();
+            if (state == IDLE) {
+                boolean windowed = ChatServer.flushWindowNanos > 0;
+                if (!writeState.compareAndSet(IDLE, windowed ? WAITING : WRITING)) continue;
+                if (windowed) onReactor(() -> reactor.flushLater(this));
+                else onReactor(this::enableWrite);
+            } else if (state == WAITING) {
+                // Don't sit on a full write's worth of output for the rest of the window
+                if (outbound.bytes() >= ChatServer.flushBytes && writeState.compareAndSet(WAITING, WRITING)) {
+                    onReactor(this::enableWrite);
+                }
+            }
+            return;
+        }
+    }
+
+    /** Called by the reactor when this connection's flush window has passed. */
+    void windowClosed() {
+        if (writeState.compareAndSet(WAITING, WRITING)) enableWrite();
+    }
+
+    private void onReactor(Runnable task) {
+        if (reactor.inReactorThread()) task.run();
+        else reactor.execute(task);
+    }
+
+    private void enableWrite() {
+        if (key != null && key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    @Override
+    void close() {
+        if (!reactor.inReactorThread()) {
+            reactor.execute(this::close);
+            return;
+        }
+        if (!closed.compareAndSet(false, true)) return;
+        if (key != null) key.cancel();
+        try { channel.close(); } catch (IOException ignored) {}
+        outbound.close();
+        inFlight.clear();
+        ChatServer.logout(this);
+    }
+}
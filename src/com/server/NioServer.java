@@ -0,0 +1,44 @@
+package com.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking server engine: the calling thread accepts connections and deals
+ * them round-robin to a fixed set of {@link Reactor}s, each of which owns its
+ * shard of sockets for their whole lifetime.
+ */
+final class NioServer {
+    private final int port;
+    private final Reactor[] reactors;
+
+    NioServer(int port, int reactorCount) throws IOException {
+        if (reactorCount < 1) throw new IllegalArgumentException("reactors must be >= 1");
+        this.port = port;
+        this.reactors = new Reactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new Reactor("reactor-" + i);
+        }
+    }
+
+    void run() throws IOException {
+        for (Reactor r : reactors) {
+            r.start();
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            System.out.println("Chat server running on port " + port + " (nio, " + reactors.length + " reactors)");
+
+            int next = 0;
+            while (true) {
+                ChatServer.paceAccepts();
+                SocketChannel ch = server.accept();
+                reactors[next].register(ch);
+                next = (next + 1) % reactors.length;
+            }
+        }
+    }
+}
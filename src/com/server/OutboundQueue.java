@@ -0,0 +1,272 @@
+package com.server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded per-connection outbound queue. Senders only ever enqueue, so a
+ * broadcast costs the same whether a recipient is fast or stalled; the
+ * connection's own writer drains it. What happens when a slow consumer
+ * fills its queue is decided by the {@link Policy}.
+ * <p>
+ * Frames wait in one FIFO lane per {@link Frame.Lane} and are taken in lane
+ * order, so a backlog of typing digests never holds up a presence update
+ * or a chat line. A typing digest replaces a still-queued one for the same
+ * room instead of queueing behind it.
+ */
+final class OutboundQueue {
+    enum Overflow {
+        /**
+         * Evict the oldest sheddable frame of the lowest lane that has any to
+         * make room; disconnect if nothing but control frames and replay
+         * markers is queued (see {@link Frame#sheddable()}).
+         */
+        DROP_OLDEST,
+        /** Refuse new ephemeral frames, otherwise behave like DROP_OLDEST. */
+        DROP_EPHEMERAL,
+        /** Refuse new frames while full; disconnect once the oldest frame is older than maxLagMillis. */
+        DISCONNECT
+    }
+
+    record Policy(int capacity, Overflow overflow, long maxLagMillis) {
+        static final Policy DEFAULT = new Policy(1024, Overflow.DROP_EPHEMERAL, 10_000);
+    }
+
+    // Drops across all connections, for the stats line
+    static final LongAdder TOTAL_DROPS = new LongAdder();
+    // Queued ephemeral frames replaced by a newer one before they were sent
+    static final LongAdder SUPERSEDED = new LongAdder();
+
+    private final Policy policy;
+    private final Connection owner;
+    // Indexed by Frame.Lane ordinal
+    private final ArrayDeque<Frame>[] lanes;
+    private int size;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private long drops;
+    private long bytes;
+    private boolean closed;
+    // No more frames accepted; the writer drains what is queued, then closes the connection
+    private volatile boolean finishing;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    OutboundQueue(Policy policy, Connection owner) {
+        this.policy = policy;
+        this.owner = owner;
+        this.lanes = new ArrayDeque[Frame.Lane.values().length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Enqueue a frame, applying the overflow policy if the queue is full.
+     * @return false if the consumer has fallen too far behind and should be disconnected
+     */
+    boolean offer(Frame f) {
+        lock.lock();
+        try {
+            if (closed || finishing) return true;
+            if (f.lane == Frame.Lane.EPHEMERAL && supersede(f)) return true;
+            if (size >= policy.capacity()) {
+                switch (policy.overflow()) {
+                    case DROP_OLDEST -> {
+                        if (!dropLowest()) return overrun();
+                    }
+                    case DROP_EPHEMERAL -> {
+                        if (f.lane == Frame.Lane.EPHEMERAL) {
+                            dropped();
+                            return true;
+                        }
+                        if (!dropLowest()) return overrun();
+                    }
+                    case DISCONNECT -> {
+                        long lagNanos = System.nanoTime() - oldestNanos();
+                        dropped();
+                        return lagNanos < TimeUnit.MILLISECONDS.toNanos(policy.maxLagMillis());
+                    }
+                }
+            }
+            lanes[f.lane.ordinal()].addLast(f);
+            size++;
+            bytes += f.length(owner);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Next frame, or null if none is queued. */
+    Frame poll() {
+        lock.lock();
+        try {
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Next frame, waiting up to {@code nanos} for one; null on timeout or once closed/finished. */
+    Frame poll(long nanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (size == 0) {
+                if (closed || finishing || nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Next frame, waiting for one; null once the queue is closed, or finished and drained. */
+    Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (size == 0) {
+                if (closed || finishing) return null;
+                notEmpty.await();
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stop accepting frames; the writer delivers what is already queued and then ends. */
+    void finish() {
+        lock.lock();
+        try {
+            finishing = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isFinishing() {
+        return finishing;
+    }
+
+    /** Discard queued frames and release a writer blocked in {@link #take}. */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (ArrayDeque<Frame> lane : lanes) lane.clear();
+            size = 0;
+            bytes = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Encoded bytes currently queued. */
+    long bytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long drops() {
+        lock.lock();
+        try {
+            return drops;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The head of the highest-priority lane that has one. */
+    private Frame removeFirst() {
+        for (ArrayDeque<Frame> lane : lanes) {
+            Frame f = lane.pollFirst();
+            if (f != null) {
+                size--;
+                bytes -= f.length(owner);
+                return f;
+            }
+        }
+        return null;
+    }
+
+    /** Evict the oldest sheddable frame of the lowest-priority lane that has one; false if there is none. */
+    private boolean dropLowest() {
+        for (int i = lanes.length - 1; i > Frame.Lane.CONTROL.ordinal(); i--) {
+            for (Iterator<Frame> it = lanes[i].iterator(); it.hasNext(); ) {
+                Frame f = it.next();
+                if (f.sheddable()) {
+                    it.remove();
+                    size--;
+                    bytes -= f.length(owner);
+                    dropped();
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Full of frames that must not be shed: refuse the new one and have the consumer disconnected. */
+    private boolean overrun() {
+        dropped();
+        return false;
+    }
+
+    /** Replace a queued frame that {@code f} makes stale; false if there is none. Ephemeral lanes stay short, so a scan is fine. */
+    private boolean supersede(Frame f) {
+        Object key = f.supersedeKey();
+        if (key == null) return false;
+        ArrayDeque<Frame> lane = lanes[f.lane.ordinal()];
+        for (Iterator<Frame> it = lane.iterator(); it.hasNext(); ) {
+            Frame old = it.next();
+            if (key.equals(old.supersedeKey())) {
+                it.remove();
+                lane.addLast(f);
+                bytes += f.length(owner) - old.length(owner);
+                SUPERSEDED.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Creation time of the oldest queued frame; the queue must not be empty. */
+    private long oldestNanos() {
+        long oldest = 0;
+        boolean any = false;
+        for (ArrayDeque<Frame> lane : lanes) {
+            Frame f = lane.peekFirst();
+            if (f != null && (!any || f.createdNanos - oldest < 0)) {
+                oldest = f.createdNanos;
+                any = true;
+            }
+        }
+        return oldest;
+    }
+
+    private void dropped() {
+        drops++;
+        TOTAL_DROPS.increment();
+    }
+}
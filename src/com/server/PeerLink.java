@@ -0,0 +1,51 @@
+package com.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The sending half of a link to another cluster node. Each node dials every
+ * peer and only ever writes on the links it dialed (and only reads on the
+ * ones it accepted), so messages are relayed exactly one hop. Frames are
+ * queued by any thread and written by the dialing thread, which batches
+ * whatever is queued into one flush.
+ */
+final class PeerLink {
+    // A peer this far behind is treated as dead; the dialer reconnects and resyncs presence
+    private static final int CAPACITY = 64 * 1024;
+
+    final String nodeId;
+    private final Socket socket;
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(CAPACITY);
+
+    PeerLink(String nodeId, Socket socket) {
+        this.nodeId = nodeId;
+        this.socket = socket;
+    }
+
+    /** Queue one encoded peer frame; never blocks. */
+    void send(byte[] frame) {
+        if (!queue.offer(frame)) close();
+    }
+
+    /** Write queued frames until the socket fails. */
+    void writeLoop() throws IOException, InterruptedException {
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), ChatServer.flushBytes);
+        while (true) {
+            byte[] f = queue.take();
+            out.write(f);
+            while ((f = queue.poll()) != null) {
+                out.write(f);
+            }
+            out.flush();
+        }
+    }
+
+    void close() {
+        try { socket.close(); } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,122 @@
+package com.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Nickname → connection registry; the single source of truth for who is
+ * online. Lookups are lock-free. Joins and leaves are serialized so that a
+ * client's full snapshot and the {@code USER_JOIN}/{@code USER_LEAVE}
+ * deltas other clients see are always queued in a consistent order.
+ * <p>
+ * In a cluster it also holds the replicated directory of users logged in
+ * on other nodes (nickname → node id), kept current by the {@link Cluster}
+ * peer links; the user list clients see covers the whole cluster.
+ */
+final class Presence {
+    // Nicknames per user-list frame: at most 32 chars of up to 3 UTF-8 bytes each, so a frame stays under Wire.MAX_FRAME
+    private static final int USERS_PER_FRAME = 500;
+
+    private final Map<String, Connection> byNick = new ConcurrentHashMap<>();
+    private final Map<String, String> remote = new ConcurrentHashMap<>();
+
+    /**
+     * Atomically claim {@code nick} for {@code c}, queue the full user list to
+     * {@code c} and a {@code USER_JOIN} delta to everyone else. A list too
+     * long for one frame goes as {@code USER_LIST_PART} chunks ending with a
+     * {@code USER_LIST}.
+     * @return false if the nickname is already taken anywhere in the cluster
+     */
+    synchronized boolean join(String nick, Connection c) {
+        if (remote.containsKey(nick) || byNick.putIfAbsent(nick, c) != null) return false;
+        sendList(c);
+        Frame delta = Frame.userJoin(nick);
+        for (Connection other : byNick.values()) {
+            if (other != c) other.send(delta);
+        }
+        ChatServer.cluster.userJoined(nick);
+        return true;
+    }
+
+    /**
+     * Hand {@code nick} from {@code stale} to {@code c}, its owner
+     * reconnecting, and send {@code c} the user list. Nobody else is told:
+     * the user never went offline.
+     * @return false if {@code stale} no longer owns the nickname
+     */
+    synchronized boolean takeOver(String nick, Connection stale, Connection c) {
+        if (!byNick.replace(nick, stale, c)) return false;
+        sendList(c);
+        return true;
+    }
+
+    private void sendList(Connection c) {
+        List<String> all = new ArrayList<>(byNick.keySet());
+        all.addAll(remote.keySet());
+        int last = Math.max(0, all.size() - 1) / USERS_PER_FRAME * USERS_PER_FRAME;
+        for (int from = 0; from < last; from += USERS_PER_FRAME) {
+            c.send(Frame.userListPart(all.subList(from, from + USERS_PER_FRAME)));
+        }
+        c.send(Frame.userList(all.subList(last, all.size())));
+    }
+
+    /** Release {@code c}'s nickname (if it still owns it) and queue a {@code USER_LEAVE} delta. */
+    synchronized void leave(String nick, Connection c) {
+        if (!byNick.remove(nick, c)) return;
+        deltaToLocal(Frame.userLeave(nick));
+        ChatServer.cluster.userLeft(nick);
+    }
+
+    /** Start relaying to a newly dialed peer, beginning with a snapshot of our users. */
+    synchronized void attachPeer(PeerLink link) {
+        ChatServer.cluster.linkUp(link, byNick.keySet());
+    }
+
+    synchronized void remoteJoin(String node, String nick) {
+        if (byNick.containsKey(nick)) return;
+        if (remote.put(nick, node) == null) deltaToLocal(Frame.userJoin(nick));
+    }
+
+    synchronized void remoteLeave(String node, String nick) {
+        if (remote.remove(nick, node)) deltaToLocal(Frame.userLeave(nick));
+    }
+
+    /** Replace everything known about {@code node}'s users, sending only the differences. */
+    synchronized void remoteReset(String node, Collection<String> nicks) {
+        remote.entrySet().removeIf(e -> {
+            boolean gone = e.getValue().equals(node) && !nicks.contains(e.getKey());
+            if (gone) deltaToLocal(Frame.userLeave(e.getKey()));
+            return gone;
+        });
+        for (String nick : nicks) {
+            remoteJoin(node, nick);
+        }
+    }
+
+    private void deltaToLocal(Frame delta) {
+        for (Connection other : byNick.values()) {
+            other.send(delta);
+        }
+    }
+
+    Connection lookup(String nick) {
+        return byNick.get(nick);
+    }
+
+    /** The node a remote user is logged in on, or null. */
+    String nodeOf(String nick) {
+        return remote.get(nick);
+    }
+
+    boolean isOnline(String nick) {
+        return byNick.containsKey(nick) || remote.containsKey(nick);
+    }
+
+    /** Logged-in connections, for fan-out. */
+    Collection<Connection> connections() {
+        return byNick.values();
+    }
+}
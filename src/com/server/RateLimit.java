@@ -0,0 +1,53 @@
+package com.server;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-connection command rate limits, each a {@link TokenBucket} of
+ * {@code perSecond} refill and {@code burst} capacity that every
+ * connection gets its own copy of. {@code ANY} is charged for every
+ * command, the others only for their own. A rate of 0 means unlimited.
+ */
+enum RateLimit {
+    ANY(50, 100),
+    CHAT(5, 20),
+    WHISPER(5, 20),
+    REACT(10, 30),
+    TYPING(2, 4);
+
+    final String label = name().toLowerCase(Locale.ROOT);
+    // Commands refused so far, by every connection
+    final LongAdder throttled = new LongAdder();
+    // Set once from the command line, before any connection is accepted
+    double perSecond;
+    double burst;
+
+    RateLimit(double perSecond, double burst) {
+        this.perSecond = perSecond;
+        this.burst = burst;
+    }
+
+    /** A full bucket for one connection, or null if this command is unlimited. */
+    TokenBucket newBucket(long nowNanos) {
+        return perSecond > 0 ? new TokenBucket(perSecond, burst, nowNanos) : null;
+    }
+
+    /**
+     * Override the defaults from a spec such as {@code chat:5/20,typing:2},
+     * each entry {@code command:perSecond[/burst]}; the burst defaults to the rate.
+     */
+    static void configure(String spec) {
+        for (String part : spec.split(",")) {
+            String[] kv = part.split(":");
+            if (kv.length != 2) throw new IllegalArgumentException("Bad rate limit: " + part);
+            RateLimit limit = valueOf(kv[0].trim().toUpperCase(Locale.ROOT));
+            String[] rb = kv[1].trim().split("/");
+            limit.perSecond = Double.parseDouble(rb[0]);
+            limit.burst = rb.length > 1 ? Double.parseDouble(rb[1]) : limit.perSecond;
+            if (limit.perSecond < 0 || (limit.perSecond > 0 && limit.burst < 1)) {
+                throw new IllegalArgumentException("Bad rate limit: " + part);
+            }
+        }
+    }
+}
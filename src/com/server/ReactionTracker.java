@@ -0,0 +1,128 @@
+package com.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Server-side reaction state. A reaction only updates the message's
+ * emoji → users sets (a repeat from the same user is ignored); a ticker
+ * sends one {@code REACTION_SUMMARY} with the current counts per changed
+ * message per interval. A burst of reactions on a popular message thus
+ * costs one frame per member per interval instead of one per reaction,
+ * and a client joining a room gets the current counts instead of the
+ * reaction history.
+ * <p>
+ * Only the most recently reacted-to messages of each room are tracked,
+ * each with at most {@link #EMOJIS_PER_MESSAGE} different emojis, so a
+ * summary stays small and so does the state behind it. Rooms nobody is in
+ * any more are dropped by {@link #evictIf}.
+ */
+final class ReactionTracker {
+    private static final int MESSAGES_PER_ROOM = 256;
+    static final int EMOJIS_PER_MESSAGE = 16;
+
+    enum Result {
+        ADDED,
+        /** The user had already reacted with that emoji */
+        REPEATED,
+        /** A new emoji, but the message already has the most different ones allowed */
+        FULL
+    }
+
+    private static final class Message {
+        final long id;
+        final Map<String, Set<String>> byEmoji = new LinkedHashMap<>();
+
+        Message(long id) {
+            this.id = id;
+        }
+    }
+
+    /** Guarded by its own monitor, which is also held while its summaries are queued. */
+    private static final class Room {
+        // Least recently reacted-to first
+        final LinkedHashMap<Long, Message> messages = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Message> eldest) {
+                if (size() <= MESSAGES_PER_ROOM) return false;
+                dirty.remove(eldest.getValue());
+                return true;
+            }
+        };
+        final Set<Message> dirty = new LinkedHashSet<>();
+    }
+
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+
+    /** Start emitting summaries every {@code intervalMillis}. */
+    void start(long intervalMillis) {
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "reactions");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(this::tick, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Record {@code nick}'s reaction to message {@code id} of {@code room}. */
+    Result react(String room, long id, String emoji, String nick) {
+        Room r = rooms.computeIfAbsent(room, k -> new Room());
+        synchronized (r) {
+            Message m = r.messages.computeIfAbsent(id, Message::new);
+            Set<String> users = m.byEmoji.get(emoji);
+            if (users == null) {
+                if (m.byEmoji.size() == EMOJIS_PER_MESSAGE) return Result.FULL;
+                m.byEmoji.put(emoji, users = new LinkedHashSet<>());
+            }
+            if (!users.add(nick)) return Result.REPEATED;
+            r.dirty.add(m);
+            return Result.ADDED;
+        }
+    }
+
+    /** Forget the counts of the rooms {@code idle} accepts; pending summaries for them are dropped. */
+    void evictIf(Predicate<String> idle) {
+        rooms.keySet().removeIf(idle);
+    }
+
+    /** Queue the current counts of every tracked message of {@code room} to {@code c}. */
+    void snapshot(String room, Connection c) {
+        Room r = rooms.get(room);
+        if (r == null) return;
+        synchronized (r) {
+            for (Message m : r.messages.values()) {
+                c.send(summary(room, m));
+            }
+        }
+    }
+
+    private void tick() {
+        rooms.forEach((name, r) -> {
+            synchronized (r) {
+                for (Message m : r.dirty) {
+                    // Every node tracks the whole room, so summaries stay local
+                    ChatServer.deliver(name, summary(name, m));
+                }
+                r.dirty.clear();
+            }
+        });
+    }
+
+    private static Frame summary(String room, Message m) {
+        List<String> emojis = new ArrayList<>(m.byEmoji.keySet());
+        long[] counts = new long[emojis.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = m.byEmoji.get(emojis.get(i)).size();
+        }
+        return Frame.reactionSummary(room, m.id, emojis, counts);
+    }
+}
@@ -0,0 +1,120 @@
+package com.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread. All channel and interest-set changes happen on this
+ * thread; other threads hand work over through {@link #execute}.
+ */
+final class Reactor implements Runnable {
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Shared by every connection of this reactor: frames are copied in, written, and the buffer reused
+    final ByteBuffer staging = ByteBuffer.allocateDirect(ChatServer.flushBytes);
+    // Connections holding output back for the flush window; FIFO is deadline order since the window is fixed
+    private final ArrayDeque<NioConnection> delayed = new ArrayDeque<>();
+
+    Reactor(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    boolean inReactorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Run a task on the reactor thread. */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /** Enable writes for {@code c} once the flush window has passed. Reactor thread only. */
+    void flushLater(NioConnection c) {
+        c.flushDeadline = System.nanoTime() + ChatServer.flushWindowNanos;
+        delayed.addLast(c);
+    }
+
+    /** Adopt a freshly accepted channel into this reactor's shard. */
+    void register(SocketChannel ch) {
+        execute(() -> {
+            NioConnection conn = new NioConnection(this, ch);
+            try {
+                ch.configureBlocking(false);
+                conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+                ChatServer.register(conn);
+            } catch (IOException e) {
+                e.printStackTrace();
+                conn.close();
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select(selectTimeoutMillis());
+                runTasks();
+                expireWindows();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection conn = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) conn.onReadable();
+                        if (key.isValid() && key.isWritable()) conn.onWritable();
+                    } catch (IOException | CancelledKeyException e) {
+                        conn.close();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** 0 (wait indefinitely) when no window is open, else the time to the earliest deadline, rounded up. */
+    private long selectTimeoutMillis() {
+        NioConnection first = delayed.peekFirst();
+        if (first == null) return 0;
+        long nanos = first.flushDeadline - System.nanoTime();
+        return Math.max(1, (nanos + 999_999) / 1_000_000);
+    }
+
+    private void expireWindows() {
+        long now = System.nanoTime();
+        NioConnection c;
+        while ((c = delayed.peekFirst()) != null && c.flushDeadline - now <= 0) {
+            delayed.pollFirst();
+            c.windowClosed();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * The last few logged frames delivered on this node, per room (and per
+ * {@code @nickname} for whispers), so a reconnecting client can be sent
+ * just what it missed without touching the {@link MessageLog}.
+ * <p>
+ * A ring's lock is held while a frame is recorded and fanned out, and while
+ * a resume is answered from it; a resuming client therefore gets every
+ * frame exactly once, either in its replay or live after it. A resume that
+ * has to read the log does so without the lock, then takes it again to add
+ * what was recorded meanwhile (see {@link #mark} and {@link #since}).
+ * <p>
+ * Rings of rooms with no members here and of users gone for good are
+ * evicted (see {@link #evictIf}); a later resume for them reads the log.
+ */
+final class ReplayBuffer {
+    static final class Ring {
+        // A ReentrantLock, not a monitor, so a virtual thread fanning out under it can unmount
+        final ReentrantLock lock = new ReentrantLock();
+        private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+        // Frames ever recorded
+        private long recorded;
+    }
+
+    private final int capacity;
+    private final Map<String, Ring> rings = new ConcurrentHashMap<>();
+
+    ReplayBuffer(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /** The ring for {@code key}; hold its lock around the other methods. */
+    Ring ring(String key) {
+        return rings.computeIfAbsent(key, k -> new Ring());
+    }
+
+    /** Drop the rings whose key {@code idle} accepts. */
+    void evictIf(Predicate<String> idle) {
+        rings.keySet().removeIf(idle);
+    }
+
+    void record(Ring ring, Frame frame) {
+        if (ring.frames.size() == capacity) ring.frames.removeFirst();
+        ring.frames.addLast(frame);
+        ring.recorded++;
+    }
+
+    /** Frames recorded after message {@code afterId}, or null if that message is no longer in the ring. */
+    List<Frame> after(Ring ring, long afterId) {
+        List<Frame> newer = new ArrayList<>();
+        for (Iterator<Frame> it = ring.frames.descendingIterator(); it.hasNext(); ) {
+            Frame f = it.next();
+            if (f.id() == afterId) return newer.reversed();
+            newer.add(f);
+        }
+        return null;
+    }
+
+    /** A position to ask {@link #since} about later. */
+    long mark(Ring ring) {
+        return ring.recorded;
+    }
+
+    /** Frames recorded after {@code mark}, as far as the ring still holds them. */
+    List<Frame> since(Ring ring, long mark) {
+        int n = (int) Math.min(ring.recorded - mark, ring.frames.size());
+        List<Frame> newer = new ArrayList<>(n);
+        Iterator<Frame> it = ring.frames.descendingIterator();
+        for (int i = 0; i < n; i++) newer.add(it.next());
+        return newer.reversed();
+    }
+
+    /** Whether some frames recorded after {@code mark} have already been pushed out. */
+    boolean overrun(Ring ring, long mark) {
+        return ring.recorded - mark > ring.frames.size();
+    }
+}
@@ -0,0 +1,85 @@
+package com.server;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Room → subscribers index for the named rooms. Each room's members are a
+ * copy-on-write array, so fan-out is a lock-free read of one array no
+ * bigger than the room. Joins and parts are serialized per stripe of room
+ * names, so churn in one room never blocks another room's publishers or
+ * members. A room exists while it has members.
+ * <p>
+ * The lobby ({@link #LOBBY}) is not stored here: every logged-in client is
+ * in it, so its subscribers are simply {@link Presence#connections()} and
+ * mass logins don't pay for copying an array the size of the server.
+ */
+final class Rooms {
+    static final String LOBBY = "All";
+    static final int MAX_NAME = 32;
+
+    private static final Connection[] NONE = new Connection[0];
+    private static final int STRIPES = 64;
+
+    private final Map<String, Connection[]> members = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[STRIPES];
+
+    Rooms() {
+        for (int i = 0; i < STRIPES; i++) locks[i] = new Object();
+    }
+
+    /** Room names start with a letter and contain no spaces or commas, so they survive the text protocol. */
+    static boolean isValidName(String room) {
+        if (room.isEmpty() || room.length() > MAX_NAME || !Character.isLetter(room.charAt(0))) return false;
+        for (int i = 0; i < room.length(); i++) {
+            char ch = room.charAt(i);
+            if (Character.isWhitespace(ch) || ch == ',') return false;
+        }
+        return true;
+    }
+
+    /** @return false if {@code c} was already a member */
+    boolean join(String room, Connection c) {
+        synchronized (lock(room)) {
+            if (!c.rooms.add(room)) return false;
+            Connection[] old = members.getOrDefault(room, NONE);
+            Connection[] now = Arrays.copyOf(old, old.length + 1);
+            now[old.length] = c;
+            members.put(room, now);
+            return true;
+        }
+    }
+
+    /** @return false if {@code c} was not a member */
+    boolean part(String room, Connection c) {
+        synchronized (lock(room)) {
+            if (!c.rooms.remove(room)) return false;
+            Connection[] old = members.get(room);
+            if (old.length == 1) {
+                members.remove(room);
+                return true;
+            }
+            Connection[] now = new Connection[old.length - 1];
+            for (int i = 0, j = 0; i < old.length; i++) {
+                if (old[i] != c) now[j++] = old[i];
+            }
+            members.put(room, now);
+            return true;
+        }
+    }
+
+    /** Current members of a named room; the array must not be modified. */
+    Connection[] members(String room) {
+        return members.getOrDefault(room, NONE);
+    }
+
+    /** Number of named rooms with at least one member. */
+    int count() {
+        return members.size();
+    }
+
+    private Object lock(String room) {
+        return locks[room.hashCode() & (STRIPES - 1)];
+    }
+}
@@ -0,0 +1,126 @@
+package com.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel: a ring of slots, one per tick, with every task
+ * kept in the slot its deadline hashes to. Each tick only visits the tasks
+ * of one slot, so the cost of keeping a deadline per connection does not
+ * grow with the number of connections the way a priority queue does.
+ * Deadlines further away than one turn of the wheel wait in their slot for
+ * the turn they fall in.
+ * <p>
+ * Tasks are not cancelled: one that is no longer needed says so when it
+ * next expires. A task that pushes its deadline back (a connection that saw
+ * input, say) needn't touch the wheel either; it just reports the new
+ * deadline when the old one comes round. Expiry is up to one tick late.
+ */
+final class TimingWheel {
+    /** Something with a deadline. */
+    interface Task {
+        /**
+         * Called on the wheel thread once the deadline has passed.
+         * @param nowNanos the current {@link System#nanoTime()}
+         * @return the next deadline to be called at, or 0 to be dropped
+         */
+        long expire(long nowNanos);
+    }
+
+    private static final class Entry {
+        final Task task;
+        long deadlineTick;
+
+        Entry(Task task) {
+            this.task = task;
+        }
+    }
+
+    private final long tickNanos;
+    private final List<Entry>[] slots;
+    private final int mask;
+    private final long startNanos = System.nanoTime();
+    // Scheduled from other threads, moved into the wheel at the next tick
+    private final Queue<Entry> incoming = new ConcurrentLinkedQueue<>();
+    // Wheel thread only: every tick before this one has been processed
+    private long nextTick;
+
+    /** @param slots rounded up to a power of two */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimingWheel(long tickMillis, int slots) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int n = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.slots = new List[n];
+        for (int i = 0; i < n; i++) {
+            this.slots[i] = new ArrayList<>();
+        }
+        this.mask = n - 1;
+    }
+
+    /** Start ticking on a daemon thread called {@code name}. */
+    void start(String name) {
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+        long tickMicros = TimeUnit.NANOSECONDS.toMicros(tickNanos);
+        ticker.scheduleAtFixedRate(this::advance, tickMicros, tickMicros, TimeUnit.MICROSECONDS);
+    }
+
+    /** Call {@code task} once {@code deadlineNanos} (a {@link System#nanoTime()}) has passed. Any thread. */
+    void schedule(Task task, long deadlineNanos) {
+        Entry e = new Entry(task);
+        e.deadlineTick = tickOf(deadlineNanos);
+        incoming.add(e);
+    }
+
+    /** Process every tick that has fully elapsed since the last call. */
+    private void advance() {
+        long now = System.nanoTime();
+        long current = (now - startNanos) / tickNanos;
+        Entry e;
+        while ((e = incoming.poll()) != null) {
+            insert(e);
+        }
+        List<Entry> due = new ArrayList<>();
+        for (; nextTick <= current; nextTick++) {
+            List<Entry> slot = slots[(int) (nextTick & mask)];
+            int kept = 0;
+            for (Entry entry : slot) {
+                if (entry.deadlineTick <= nextTick) due.add(entry);
+                else slot.set(kept++, entry);
+            }
+            slot.subList(kept, slot.size()).clear();
+        }
+        for (Entry entry : due) {
+            long next;
+            try {
+                next = entry.task.expire(now);
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+                continue;
+            }
+            if (next != 0) {
+                entry.deadlineTick = tickOf(next);
+                insert(entry);
+            }
+        }
+    }
+
+    /** Put {@code e} in its deadline's slot, or the next one to be processed if that has passed. */
+    private void insert(Entry e) {
+        long tick = Math.max(e.deadlineTick, nextTick);
+        slots[(int) (tick & mask)].add(e);
+    }
+
+    /** The first tick that ends after {@code nanos}. */
+    private long tickOf(long nanos) {
+        return Math.max(0, (nanos - startNanos) / tickNanos + 1);
+    }
+}
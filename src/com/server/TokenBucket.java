@@ -0,0 +1,47 @@
+package com.server;
+
+/**
+ * A token bucket: holds up to {@code burst} tokens, refilled continuously
+ * at {@code perSecond}, one token per admitted event. Not thread-safe;
+ * each bucket belongs to a single thread (a connection's reader, or the
+ * accept loop).
+ */
+final class TokenBucket {
+    private final double perNano;
+    private final double burst;
+    private double tokens;
+    private long refilledAt;
+
+    /** Starts full at {@code nowNanos}. */
+    TokenBucket(double perSecond, double burst, long nowNanos) {
+        this.perNano = perSecond / 1e9;
+        this.burst = burst;
+        this.tokens = burst;
+        this.refilledAt = nowNanos;
+    }
+
+    /** Take one token if there is one. */
+    boolean tryTake(long nowNanos) {
+        refill(nowNanos);
+        if (tokens < 1) return false;
+        tokens -= 1;
+        return true;
+    }
+
+    /** Whether the bucket has refilled to its burst. */
+    boolean isFull(long nowNanos) {
+        refill(nowNanos);
+        return tokens >= burst;
+    }
+
+    /** How long until a token is available; 0 if one is now. */
+    long nanosUntilToken(long nowNanos) {
+        refill(nowNanos);
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / perNano);
+    }
+
+    private void refill(long nowNanos) {
+        tokens = Math.min(burst, tokens + (nowNanos - refilledAt) * perNano);
+        refilledAt = nowNanos;
+    }
+}
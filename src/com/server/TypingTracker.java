@@ -0,0 +1,80 @@
+package com.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Server-side typing state. {@code /typing} only updates a per-room map of
+ * nickname → expiry; a ticker sends at most one {@code TYPING_SET <room> <csv>}
+ * digest per room per interval, and only when the set of typists changed.
+ * Typing traffic therefore scales with rooms × intervals, not keystrokes × clients,
+ * and each digest only goes to the room's members.
+ */
+final class TypingTracker {
+    // How long one /typing keeps a user in the set
+    private static final long TTL_NANOS = TimeUnit.SECONDS.toNanos(3);
+    // A /typing arriving sooner than this after the last accepted one is redundant
+    private static final long REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final class Room {
+        final Map<String, Long> expiries = new ConcurrentHashMap<>();
+        final AtomicBoolean dirty = new AtomicBoolean();
+    }
+
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+
+    /** Start emitting digests every {@code intervalMillis}. */
+    void start(long intervalMillis) {
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "typing");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(this::tick, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Record a {@code /typing} from {@code nick}; redundant refreshes are dropped.
+     * @return false if it was dropped
+     */
+    boolean typing(String room, String nick) {
+        Room r = rooms.computeIfAbsent(room, k -> new Room());
+        long now = System.nanoTime();
+        Long previous = r.expiries.get(nick);
+        if (previous != null && previous - now > TTL_NANOS - REFRESH_NANOS) return false;
+        if (r.expiries.put(nick, now + TTL_NANOS) == null) r.dirty.set(true);
+        return true;
+    }
+
+    /**
+     * {@code nick} sent a message or left: drop them from the room's set right away.
+     * @return false if they weren't typing
+     */
+    boolean stopped(String room, String nick) {
+        Room r = rooms.get(room);
+        if (r == null || r.expiries.remove(nick) == null) return false;
+        r.dirty.set(true);
+        return true;
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        rooms.forEach((name, r) -> {
+            r.expiries.entrySet().removeIf(e -> {
+                boolean expired = e.getValue() - now <= 0;
+                if (expired) r.dirty.set(true);
+                return expired;
+            });
+            if (r.dirty.compareAndSet(true, false)) {
+                // Every node tracks the whole room, so digests stay local
+                ChatServer.deliver(name, Frame.typingSet(name, r.expiries.keySet()));
+            }
+            // Forget quiet rooms; a racing /typing at worst loses one refresh
+            if (r.expiries.isEmpty()) rooms.remove(name, r);
+        });
+    }
+}